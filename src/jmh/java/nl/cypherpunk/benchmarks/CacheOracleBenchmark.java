@@ -0,0 +1,113 @@
+/*
+ *  Copyright (c) 2016 Joeri de Ruiter
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package nl.cypherpunk.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.learnlib.logging.LearnLogger;
+import de.learnlib.oracles.DefaultQuery;
+import net.automatalib.words.Word;
+import nl.cypherpunk.modifiedcache.MealyCacheOracle;
+import nl.cypherpunk.statelearner.LearningConfig;
+import nl.cypherpunk.statelearner.LogOracle.MealyLogOracle;
+
+/**
+ * MealyCacheOracle.processQueries with a delegate that answers from a
+ * simulator (or the replayed observations) without any latency, so only the
+ * cost of the cache layer is measured. The cold benchmark starts with an empty
+ * cache, so every query goes to the delegate once, the warm benchmark answers
+ * everything from the DAG.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CacheOracleBenchmark {
+	@Param({ CacheWorkload.SYNTHETIC, CacheWorkload.REPLAY })
+	String workload;
+
+	@Param("cache.db")
+	String cacheDb;
+
+	@Param(LearningConfig.PARTITION_NONE)
+	String cachePartition;
+
+	@Param("10000")
+	int queries;
+
+	@Param("10")
+	int maxLength;
+
+	@Param({ "1", "100" })
+	int batchSize;
+
+	CacheWorkload data;
+	LearningConfig config;
+	LearnLogger logger;
+	MealyCacheOracle<String, String> filled;
+
+	@Setup
+	public void setup() throws Exception {
+		data = CacheWorkload.load(workload, cacheDb, cachePartition, queries, maxLength);
+		config = CacheWorkload.createConfig(new Properties());
+		logger = CacheWorkload.createLogger();
+		filled = cold();
+	}
+
+	@Benchmark
+	public MealyCacheOracle<String, String> cold() {
+		MealyCacheOracle<String, String> oracle = MealyCacheOracle.createDAGCacheOracle(data.alphabet, null,
+				new MealyLogOracle<String, String>(data.sul, logger, config), null);
+		process(oracle);
+		return oracle;
+	}
+
+	@Benchmark
+	public MealyCacheOracle<String, String> warm() {
+		process(filled);
+		return filled;
+	}
+
+	private void process(MealyCacheOracle<String, String> oracle) {
+		List<DefaultQuery<String, Word<String>>> batch = new ArrayList<>(batchSize);
+		for (Word<String> input : data.inputs) {
+			batch.add(new DefaultQuery<String, Word<String>>(input));
+			if (batch.size() == batchSize) {
+				oracle.processQueries(batch);
+				batch.clear();
+			}
+		}
+		oracle.processQueries(batch);
+	}
+}
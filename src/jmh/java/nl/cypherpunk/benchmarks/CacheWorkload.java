@@ -0,0 +1,268 @@
+/*
+ *  Copyright (c) 2016 Joeri de Ruiter
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package nl.cypherpunk.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Level;
+
+import de.learnlib.api.SUL;
+import de.learnlib.logging.LearnLogger;
+import net.automatalib.incremental.ConflictException;
+import net.automatalib.words.Word;
+import net.automatalib.words.WordBuilder;
+import net.automatalib.words.impl.SimpleAlphabet;
+import nl.cypherpunk.modifiedcache.dag.IncrementalMealyDAGBuilder;
+import nl.cypherpunk.statelearner.CachePartition;
+import nl.cypherpunk.statelearner.LearningConfig;
+import nl.cypherpunk.statelearner.LogOracle;
+import nl.cypherpunk.statelearner.simulator.SimulatorConfig;
+import nl.cypherpunk.statelearner.simulator.SimulatorModel;
+import nl.cypherpunk.statelearner.simulator.SimulatorSUL;
+
+/**
+ * Queries and responses used by the cache benchmarks, either generated from a
+ * random simulator model or replayed from an existing <code>cache.db</code>.
+ *
+ * Synthetic workloads come with the simulator SUL that produced them, so the
+ * responses are consistent with what a delegate oracle would answer. Replayed
+ * workloads use the most common response of every query in the database and
+ * skip queries that conflict with queries loaded before them.
+ */
+public class CacheWorkload {
+	public static final String SYNTHETIC = "synthetic";
+	public static final String REPLAY = "replay";
+
+	// Logger for the query oracles used in the benchmarks, which does not print
+	// anything
+	public static final String LOGGER = "benchmark_queries";
+
+	final SimpleAlphabet<String> alphabet;
+	final List<Word<String>> inputs;
+	final List<Word<String>> outputs;
+	final SUL<String, String> sul;
+
+	private CacheWorkload(SimpleAlphabet<String> alphabet, List<Word<String>> inputs, List<Word<String>> outputs,
+			SUL<String, String> sul) {
+		this.alphabet = alphabet;
+		this.inputs = inputs;
+		this.outputs = outputs;
+		this.sul = sul;
+	}
+
+	public int size() {
+		return inputs.size();
+	}
+
+	public static CacheWorkload load(String workload, String cacheDb, String cachePartition, int queries,
+			int maxLength) throws Exception {
+		if (REPLAY.equals(workload))
+			return replay(cacheDb, cachePartition, queries);
+		return synthetic(queries, maxLength, 8, 20, 1);
+	}
+
+	/**
+	 * Random queries of 1 to maxLength symbols over a random model with the given
+	 * number of input symbols and states.
+	 */
+	public static CacheWorkload synthetic(int queries, int maxLength, int symbols, int states, long seed)
+			throws Exception {
+		StringBuilder alphabet = new StringBuilder();
+		for (int i = 0; i < symbols; i++) {
+			if (i > 0)
+				alphabet.append(' ');
+			alphabet.append("I").append(i);
+		}
+
+		Properties properties = new Properties();
+		properties.setProperty("type", "simulator");
+		properties.setProperty("alphabet", alphabet.toString());
+		properties.setProperty("simulator_states", Integer.toString(states));
+		properties.setProperty("simulator_seed", Long.toString(seed));
+		SimulatorSUL sul = new SimulatorSUL(new SimulatorConfig(createConfig(properties)));
+		SimulatorModel model = sul.getModel();
+
+		Random random = new Random(seed);
+		List<Word<String>> inputs = new ArrayList<>(queries);
+		List<Word<String>> outputs = new ArrayList<>(queries);
+		for (int q = 0; q < queries; q++) {
+			int length = 1 + random.nextInt(maxLength);
+			WordBuilder<String> in = new WordBuilder<>(length);
+			WordBuilder<String> out = new WordBuilder<>(length);
+			int state = model.getInitialState();
+			for (int i = 0; i < length; i++) {
+				int input = random.nextInt(symbols);
+				in.append(model.getInputs().get(input));
+				out.append(model.getOutput(state, input));
+				state = model.getSuccessor(state, input);
+			}
+			inputs.add(in.toWord());
+			outputs.add(out.toWord());
+		}
+
+		return new CacheWorkload(sul.getAlphabet(), inputs, outputs, sul);
+	}
+
+	/**
+	 * Longest queries first from a partition of the database cache, with their
+	 * most common response. At most the given number of queries is loaded. The
+	 * partition is given by name, or "none" for the unpartitioned table.
+	 */
+	public static CacheWorkload replay(String cacheDb, String cachePartition, int queries) throws Exception {
+		if (!new File(cacheDb).exists())
+			throw new IllegalStateException("Cache database " + cacheDb + " not found, set it with -p cacheDb=...");
+
+		Set<String> symbols = new LinkedHashSet<>();
+		List<Word<String>> inputs = new ArrayList<>();
+		List<Word<String>> outputs = new ArrayList<>();
+		Set<String> seen = new HashSet<>();
+
+		CachePartition partition = LearningConfig.PARTITION_NONE.equals(cachePartition)
+				? CachePartition.UNPARTITIONED : new CachePartition(cachePartition, cachePartition);
+
+		Class.forName("org.sqlite.JDBC");
+		Connection conn = DriverManager.getConnection("jdbc:sqlite:" + cacheDb);
+		try {
+			Statement stmt = conn.createStatement();
+			ResultSet rs = stmt.executeQuery("SELECT PREFIX_ID, RESPONSE FROM " + partition.cacheTable() + " WHERE IS_OPTIMISED = 0 "
+					+ "ORDER BY LENGTH(PREFIX_ID) DESC, COUNT DESC, ID ASC");
+			while (rs.next()) {
+				String prefix = rs.getString("PREFIX_ID");
+				if (!seen.add(prefix))
+					continue;
+				String[] in = prefix.trim().split("\\s+");
+				String[] out = rs.getString("RESPONSE").trim().split("\\s+");
+				if (in.length != out.length || in[0].isEmpty())
+					continue;
+				for (String sym : in) {
+					symbols.add(sym);
+				}
+				inputs.add(Word.fromArray(in, 0, in.length));
+				outputs.add(Word.fromArray(out, 0, out.length));
+			}
+			rs.close();
+			stmt.close();
+		} finally {
+			conn.close();
+		}
+
+		// Drop queries whose response conflicts with an earlier (longer) one, as the
+		// in-memory cache can not store both
+		SimpleAlphabet<String> alphabet = new SimpleAlphabet<>(new ArrayList<>(symbols));
+		IncrementalMealyDAGBuilder<String, String> dag = new IncrementalMealyDAGBuilder<>(alphabet);
+		List<Word<String>> consistentInputs = new ArrayList<>();
+		List<Word<String>> consistentOutputs = new ArrayList<>();
+		for (int i = 0; i < inputs.size() && consistentInputs.size() < queries; i++) {
+			try {
+				dag.insert(inputs.get(i), outputs.get(i));
+				consistentInputs.add(inputs.get(i));
+				consistentOutputs.add(outputs.get(i));
+			} catch (ConflictException e) {
+				// Nondeterministic observation, skip
+			}
+		}
+		if (consistentInputs.isEmpty())
+			throw new IllegalStateException("No usable queries in " + cacheDb);
+
+		return new CacheWorkload(alphabet, consistentInputs, consistentOutputs, new ReplaySUL(dag));
+	}
+
+	/**
+	 * Create a configuration from the given properties, through a temporary file
+	 * as LearningConfig only reads from files. The learning algorithm, which
+	 * LearningConfig requires, defaults to lstar.
+	 */
+	public static LearningConfig createConfig(Properties properties) throws IOException {
+		properties = (Properties) properties.clone();
+		if (properties.getProperty("learning_algorithm") == null)
+			properties.setProperty("learning_algorithm", "lstar");
+
+		File file = File.createTempFile("benchmark", ".properties");
+		file.deleteOnExit();
+		OutputStream out = new FileOutputStream(file);
+		try {
+			properties.store(out, null);
+		} finally {
+			out.close();
+		}
+		return new LearningConfig(file.getPath());
+	}
+
+	public static LearnLogger createLogger() {
+		LearnLogger logger = LearnLogger.getLogger(LOGGER);
+		logger.setLevel(Level.OFF);
+		logger.setUseParentHandlers(false);
+		return logger;
+	}
+
+	/**
+	 * Create an empty cache database with the same unpartitioned table and index
+	 * as the learner uses.
+	 */
+	public static Connection createDatabase(File file) throws ClassNotFoundException, SQLException {
+		Class.forName("org.sqlite.JDBC");
+		Connection conn = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+		CachePartition.UNPARTITIONED.create(conn);
+		return conn;
+	}
+
+	/**
+	 * SUL that answers from the replayed observations. Inputs that were never
+	 * observed after the current prefix produce the disable output.
+	 */
+	static class ReplaySUL implements SUL<String, String> {
+		private final IncrementalMealyDAGBuilder<String, String> dag;
+		private final WordBuilder<String> prefix = new WordBuilder<>();
+		private final List<String> output = new ArrayList<>();
+
+		ReplaySUL(IncrementalMealyDAGBuilder<String, String> dag) {
+			this.dag = dag;
+		}
+
+		@Override
+		public void pre() {
+			prefix.clear();
+		}
+
+		@Override
+		public void post() {
+		}
+
+		@Override
+		public String step(String in) {
+			prefix.append(in);
+			output.clear();
+			if (!dag.lookup(prefix.toWord(), output))
+				return LogOracle.DISABLE_OUTPUT;
+			return output.get(output.size() - 1);
+		}
+	}
+}
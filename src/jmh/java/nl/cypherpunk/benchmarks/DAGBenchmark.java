@@ -0,0 +1,92 @@
+/*
+ *  Copyright (c) 2016 Joeri de Ruiter
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package nl.cypherpunk.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import nl.cypherpunk.modifiedcache.dag.IncrementalMealyDAGBuilder;
+import nl.cypherpunk.statelearner.LearningConfig;
+
+/**
+ * Inserting all queries of a workload into an empty DAG cache, and looking all
+ * of them up in a filled one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DAGBenchmark {
+	@Param({ CacheWorkload.SYNTHETIC, CacheWorkload.REPLAY })
+	String workload;
+
+	@Param("cache.db")
+	String cacheDb;
+
+	@Param(LearningConfig.PARTITION_NONE)
+	String cachePartition;
+
+	@Param("10000")
+	int queries;
+
+	@Param("10")
+	int maxLength;
+
+	CacheWorkload data;
+	IncrementalMealyDAGBuilder<String, String> filled;
+
+	@Setup
+	public void setup() throws Exception {
+		data = CacheWorkload.load(workload, cacheDb, cachePartition, queries, maxLength);
+		filled = insert();
+	}
+
+	@Benchmark
+	public IncrementalMealyDAGBuilder<String, String> insert() {
+		IncrementalMealyDAGBuilder<String, String> dag = new IncrementalMealyDAGBuilder<>(data.alphabet);
+		for (int i = 0; i < data.size(); i++) {
+			dag.insert(data.inputs.get(i), data.outputs.get(i));
+		}
+		return dag;
+	}
+
+	@Benchmark
+	public void lookup(Blackhole bh) {
+		List<String> output = new ArrayList<>();
+		for (int i = 0; i < data.size(); i++) {
+			output.clear();
+			bh.consume(filled.lookup(data.inputs.get(i), output));
+		}
+		bh.consume(output);
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ *  Copyright (c) 2016 Joeri de Ruiter
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package nl.cypherpunk.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.cypherpunk.statelearner.tls.TLS;
+import nl.cypherpunk.statelearner.tls.TLS10;
+import nl.cypherpunk.statelearner.tls.TLS12;
+
+/**
+ * The TLS 1.0 and TLS 1.2 pseudo-random functions, and the key derivations
+ * built on them that run for every ChangeCipherSpec and key exchange during
+ * learning. The pre-master secret is 48 bytes for RSA key exchange, set
+ * premasterSize to the size of the DH prime to measure DHE.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class PRFBenchmark {
+	@Param({ "TLS10", "TLS12" })
+	String version;
+
+	@Param("48")
+	int premasterSize;
+
+	TLS tls;
+	byte[] preMasterSecret;
+	byte[] masterSecret;
+	byte[] serverRandom;
+	byte[] clientRandom;
+	byte[] seed;
+
+	@Setup
+	public void setup() throws Exception {
+		tls = "TLS10".equals(version) ? new TLS10() : new TLS12();
+
+		Random random = new Random(1);
+		preMasterSecret = new byte[premasterSize];
+		random.nextBytes(preMasterSecret);
+		serverRandom = new byte[32];
+		random.nextBytes(serverRandom);
+		clientRandom = new byte[32];
+		random.nextBytes(clientRandom);
+		seed = new byte[64];
+		random.nextBytes(seed);
+		masterSecret = tls.masterSecret(preMasterSecret, serverRandom, clientRandom);
+	}
+
+	@Benchmark
+	public byte[] prf() throws Exception {
+		if (tls instanceof TLS10)
+			return TLS10.PRF(masterSecret, "key expansion", seed);
+		return TLS12.PRF(masterSecret, "key expansion", seed);
+	}
+
+	@Benchmark
+	public byte[] masterSecret() throws Exception {
+		return tls.masterSecret(preMasterSecret, serverRandom, clientRandom);
+	}
+
+	@Benchmark
+	public byte[] keyblock() throws Exception {
+		return tls.keyblock(masterSecret, serverRandom, clientRandom);
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ *  Copyright (c) 2016 Joeri de Ruiter
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package nl.cypherpunk.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.cypherpunk.statelearner.tls.TLSTestService;
+
+/**
+ * TLSTestService.receiveMessages parsing a canned server flight from memory,
+ * without any network latency.
+ *
+ * The flights are recorded in the setup by a second test service in the server
+ * role, which writes to a buffer instead of a socket:
+ * <ul>
+ * <li><b>hello</b>: ServerHello, an empty Certificate and ServerHelloDone</li>
+ * <li><b>encrypted</b>: ChangeCipherSpec followed by an encrypted Finished,
+ * application data and alert. Both services use the initial (empty) master
+ * secret, so the client derives the same keys when it parses the
+ * ChangeCipherSpec.</li>
+ * <li><b>alert</b>: a single plaintext alert</li>
+ * </ul>
+ *
+ * Every invocation resets the client with setInitValues first, like a reset
+ * during learning does. The reset benchmark measures only that part.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ReceiveMessagesBenchmark {
+	public static final String HELLO = "hello";
+	public static final String ENCRYPTED = "encrypted";
+	public static final String ALERT = "alert";
+
+	@Param({ HELLO, ENCRYPTED, ALERT })
+	String flight;
+
+	@Param({ "TLS10", "TLS12" })
+	String version;
+
+	TLSTestService client;
+	ReplayInputStream input;
+
+	@Setup
+	public void setup() throws Exception {
+		input = new ReplayInputStream(record(flight, version));
+
+		client = new TLSTestService();
+		if ("TLS10".equals(version))
+			client.useTLS10();
+		client.setStreams(input, new ByteArrayOutputStream());
+
+		String out = receive();
+		if (out.contains("Error") || out.contains("Unknown") || out.equals("Empty"))
+			throw new IllegalStateException("Unexpected output for flight " + flight + ": " + out);
+	}
+
+	@Benchmark
+	public String receive() throws Exception {
+		client.setInitValues();
+		input.rewind();
+		return client.receiveMessages();
+	}
+
+	@Benchmark
+	public TLSTestService reset() throws Exception {
+		client.setInitValues();
+		return client;
+	}
+
+	/**
+	 * Record the bytes a server sends for the given flight.
+	 */
+	static byte[] record(String flight, String version) throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		TLSTestService server = new TLSTestService();
+		server.setTarget("client");
+		if ("TLS10".equals(version))
+			server.useTLS10();
+		// Nothing is received, so every send returns immediately
+		server.setStreams(new ReplayInputStream(new byte[0]), output);
+
+		if (HELLO.equals(flight)) {
+			server.sendServerHelloDHE();
+			server.sendEmptyCertificate();
+			server.sendServerHelloDone();
+		}
+		else if (ENCRYPTED.equals(flight)) {
+			server.sendChangeCipherSpec();
+			server.sendFinished();
+			server.sendApplicationData();
+			server.sendAlert10();
+		}
+		else if (ALERT.equals(flight)) {
+			server.sendAlert10();
+		}
+		else {
+			throw new IllegalArgumentException("Unknown flight: " + flight);
+		}
+
+		return output.toByteArray();
+	}
+
+	/**
+	 * In-memory input that behaves like a socket with a receive timeout: reading
+	 * past the end throws a SocketTimeoutException instead of returning -1, which
+	 * would be treated as a closed connection.
+	 */
+	static class ReplayInputStream extends InputStream {
+		private final byte[] data;
+		private int pos = 0;
+
+		ReplayInputStream(byte[] data) {
+			this.data = data;
+		}
+
+		void rewind() {
+			pos = 0;
+		}
+
+		@Override
+		public int read() throws SocketTimeoutException {
+			if (pos >= data.length)
+				throw new SocketTimeoutException("End of recorded flight");
+			return data[pos++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws SocketTimeoutException {
+			if (len == 0)
+				return 0;
+			if (pos >= data.length)
+				throw new SocketTimeoutException("End of recorded flight");
+			int n = Math.min(len, data.length - pos);
+			System.arraycopy(data, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return data.length - pos;
+		}
+	}
+}
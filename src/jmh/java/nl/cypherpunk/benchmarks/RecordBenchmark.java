@@ -0,0 +1,154 @@
+/*
+ *  Copyright (c) 2016 Joeri de Ruiter
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package nl.cypherpunk.benchmarks;
+
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.cypherpunk.statelearner.tls.ProtocolVersion;
+import nl.cypherpunk.statelearner.tls.Record;
+import nl.cypherpunk.statelearner.tls.TLS;
+
+/**
+ * Protecting and unprotecting a single application data record with
+ * TLS_RSA_WITH_AES_128_CBC_SHA, the cipher suite used by the TLS test service
+ * by default. The ciphers are reused between invocations, like they are for all
+ * records in a connection.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class RecordBenchmark {
+	static final int HASH_SIZE = 20;
+
+	@Param({ "TLS10", "TLS12" })
+	String version;
+
+	@Param({ "64", "1024", "16384" })
+	int payloadSize;
+
+	ProtocolVersion protocolVersion;
+	SecureRandom rand;
+	byte[] payload;
+	Mac writeMAC;
+	Mac readMAC;
+	Cipher writeCipher;
+	Cipher readCipher;
+
+	// Encrypted record (payload, MAC and padding) and the same record after
+	// decryption, with the MAC separated from the payload
+	byte[] ciphertext;
+	Record decrypted;
+
+	@Setup
+	public void setup() throws Exception {
+		protocolVersion = "TLS10".equals(version) ? ProtocolVersion.TLS10 : ProtocolVersion.TLS12;
+		rand = new SecureRandom();
+
+		Random random = new Random(1);
+		payload = new byte[payloadSize];
+		random.nextBytes(payload);
+		byte[] macKey = new byte[HASH_SIZE];
+		random.nextBytes(macKey);
+		byte[] key = new byte[16];
+		random.nextBytes(key);
+		byte[] iv = new byte[16];
+		random.nextBytes(iv);
+
+		SecretKeySpec macKeySpec = new SecretKeySpec(macKey, "HmacSHA1");
+		writeMAC = Mac.getInstance("HmacSHA1");
+		writeMAC.init(macKeySpec);
+		readMAC = Mac.getInstance("HmacSHA1");
+		readMAC.init(macKeySpec);
+
+		SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
+		writeCipher = Cipher.getInstance("AES/CBC/NoPadding");
+		writeCipher.init(Cipher.ENCRYPT_MODE, keySpec, new IvParameterSpec(iv));
+		readCipher = Cipher.getInstance("AES/CBC/NoPadding");
+		readCipher.init(Cipher.DECRYPT_MODE, keySpec, new IvParameterSpec(iv));
+
+		Record record = new Record(TLS.CONTENT_TYPE_APPLICATION, protocolVersion, payload);
+		record.addMAC(writeMAC, HASH_SIZE, 0);
+		record.encrypt(writeCipher, rand);
+		ciphertext = record.getPayload();
+
+		decrypted = new Record(TLS.CONTENT_TYPE_APPLICATION, protocolVersion, ciphertext);
+		decrypted.decrypt(readCipher, HASH_SIZE);
+		if (!decrypted.checkMAC(readMAC, 0))
+			throw new IllegalStateException("MAC of the benchmark record does not verify");
+
+		// From here on the CBC state of readCipher is the last block of ciphertext,
+		// so decrypting it again only garbles the first block. The padding, which
+		// decrypt checks, is in the last block.
+	}
+
+	@Benchmark
+	public Record addMAC() throws Exception {
+		Record record = new Record(TLS.CONTENT_TYPE_APPLICATION, protocolVersion, payload);
+		record.addMAC(writeMAC, HASH_SIZE, 0);
+		return record;
+	}
+
+	@Benchmark
+	public Record encrypt() throws Exception {
+		Record record = new Record(TLS.CONTENT_TYPE_APPLICATION, protocolVersion, payload);
+		record.encrypt(writeCipher, rand);
+		return record;
+	}
+
+	@Benchmark
+	public Record decrypt() throws Exception {
+		Record record = new Record(TLS.CONTENT_TYPE_APPLICATION, protocolVersion, ciphertext);
+		record.decrypt(readCipher, HASH_SIZE);
+		return record;
+	}
+
+	@Benchmark
+	public boolean checkMAC() {
+		return decrypted.checkMAC(readMAC, 0);
+	}
+
+	@Benchmark
+	public Record protect() throws Exception {
+		// Same steps as TLSTestService.sendMessage after ChangeCipherSpec
+		Record record = new Record(TLS.CONTENT_TYPE_APPLICATION, protocolVersion, payload);
+		record.addMAC(writeMAC, HASH_SIZE, 0);
+		record.encrypt(writeCipher, rand);
+		return record;
+	}
+}
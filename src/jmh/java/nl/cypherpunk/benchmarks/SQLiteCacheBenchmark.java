@@ -0,0 +1,148 @@
+/*
+ *  Copyright (c) 2016 Joeri de Ruiter
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package nl.cypherpunk.benchmarks;
+
+import java.io.File;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.automatalib.words.Word;
+import net.automatalib.words.WordBuilder;
+import nl.cypherpunk.statelearner.LearningConfig;
+import nl.cypherpunk.statelearner.LogOracle;
+import nl.cypherpunk.statelearner.Utils;
+
+/**
+ * The SQLite paths of the query cache in Utils, on a copy of the workload in a
+ * temporary database. Every invocation handles one query, cycling through the
+ * workload.
+ *
+ * For synthetic workloads a quarter of the responses is disabled from a random
+ * position onwards, so responseIfDisabled sees both hits and misses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SQLiteCacheBenchmark {
+	@Param({ CacheWorkload.SYNTHETIC, CacheWorkload.REPLAY })
+	String workload;
+
+	@Param("cache.db")
+	String cacheDb;
+
+	@Param(LearningConfig.PARTITION_NONE)
+	String cachePartition;
+
+	@Param("10000")
+	int queries;
+
+	@Param("10")
+	int maxLength;
+
+	File dbFile;
+	Connection conn;
+	List<Word<String>> inputs;
+	List<Word<String>> outputs;
+	List<String> queryStrings;
+	int next = 0;
+
+	@Setup
+	public void setup() throws Exception {
+		CacheWorkload data = CacheWorkload.load(workload, cacheDb, cachePartition, queries, maxLength);
+		inputs = data.inputs;
+		outputs = data.outputs;
+		if (CacheWorkload.SYNTHETIC.equals(workload))
+			outputs = disableSome(outputs, new Random(1));
+
+		dbFile = File.createTempFile("benchmark", ".db");
+		conn = CacheWorkload.createDatabase(dbFile);
+		conn.setAutoCommit(false);
+		queryStrings = new ArrayList<>(inputs.size());
+		for (int i = 0; i < inputs.size(); i++) {
+			Utils.cacheQueryResponse(inputs.get(i), outputs.get(i), conn);
+			queryStrings.add(inputs.get(i).toString());
+		}
+		conn.commit();
+		conn.setAutoCommit(true);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		conn.close();
+		dbFile.delete();
+	}
+
+	@Benchmark
+	public Word<?> cacheLookupQuery() {
+		return Utils.cacheLookupQuery(queryStrings.get(nextIndex()), 0, conn);
+	}
+
+	@Benchmark
+	public int cacheQueryResponse() {
+		// All queries are stored already, so this measures the counter update
+		int i = nextIndex();
+		Utils.cacheQueryResponse(inputs.get(i), outputs.get(i), conn);
+		return i;
+	}
+
+	@Benchmark
+	public Word<String> responseIfDisabled() {
+		return Utils.responseIfDisabled(queryStrings.get(nextIndex()), conn);
+	}
+
+	private int nextIndex() {
+		int i = next;
+		next = (next + 1) % queryStrings.size();
+		return i;
+	}
+
+	private static List<Word<String>> disableSome(List<Word<String>> outputs, Random random) {
+		List<Word<String>> result = new ArrayList<>(outputs.size());
+		for (Word<String> output : outputs) {
+			if (random.nextInt(4) != 0) {
+				result.add(output);
+				continue;
+			}
+			int from = random.nextInt(output.length());
+			WordBuilder<String> wb = new WordBuilder<>(output.prefix(from));
+			for (int i = from; i < output.length(); i++) {
+				wb.append(LogOracle.DISABLE_OUTPUT);
+			}
+			result.add(wb.toWord());
+		}
+		return result;
+	}
+}
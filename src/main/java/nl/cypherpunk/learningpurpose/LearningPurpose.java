@@ -1,18 +1,16 @@
 package nl.cypherpunk.learningpurpose;
 
-import java.sql.Connection;
 import java.util.ArrayList;
 
-import net.automatalib.words.Word;
 import net.automatalib.words.WordBuilder;
 import net.automatalib.words.impl.SimpleAlphabet;
+import nl.cypherpunk.statelearner.DisabledPrefixes;
 import nl.cypherpunk.statelearner.LearningConfig;
-import nl.cypherpunk.statelearner.LogOracle;
 import nl.cypherpunk.statelearner.Utils;
 
-public class LearningPurpose {
+public class LearningPurpose implements LearningPurposeEngine {
 
-	private Connection dbConn;
+	private DisabledPrefixes disabledPrefixes;
 	private int state = 0;
 	private static String DISABLE_SYM = "-";
 	private String last_message = "";
@@ -24,7 +22,7 @@ public class LearningPurpose {
 	private SimpleAlphabet<String> alphabet;
 
 	public LearningPurpose(LearningConfig config) {
-		this.dbConn = config.getDbConn();
+		this.disabledPrefixes = config.getDisabledPrefixes();
 
 		// Reset/Disable outputs
 		this.resetOutputs = config.getDisable_outputs();
@@ -35,6 +33,7 @@ public class LearningPurpose {
 		this.alphabet = config.getAlphabet();
 	}
 
+	@Override
 	public boolean run(String sym) {
 		this.queryIndex++;
 		switch (state) {
@@ -54,6 +53,7 @@ public class LearningPurpose {
 		}
 	}
 
+	@Override
 	public void reset() {
 		this.state = 0;
 		this.queryIndex = 0;
@@ -96,13 +96,12 @@ public class LearningPurpose {
 			// This shouldn't happen, but if it does we can safely return null
 			return;
 		}
+		ArrayList<String> disabled = new ArrayList<>();
 		for (String s : this.alphabet) {
-			if (!this.postRetransInputs.contains(s)) {
-				String q = this.query.toWord().toString() + " " + s;
-				String r = this.response.toWord().toString() + " " + LogOracle.DISABLE_OUTPUT;
-				Utils.cacheStringQueryResponse(q, r, dbConn, true);
-			}
+			if (!this.postRetransInputs.contains(s))
+				disabled.add(s);
 		}
+		disabledPrefixes.add(this.query.toWord().toString(), this.response.toWord().toString(), disabled);
 	}
 
 	private void optimiseDisableState() {
@@ -110,13 +109,11 @@ public class LearningPurpose {
 			// This shouldn't happen, but if it does we can safely return null
 			return;
 		}
-		for (String s : this.alphabet) {
-			String q = this.query.toWord().toString() + " " + s;
-			String r = this.response.toWord().toString() + " " + LogOracle.DISABLE_OUTPUT;
-			Utils.cacheStringQueryResponse(q, r, dbConn, true);
-		}
+		// Every input is disabled
+		disabledPrefixes.add(this.query.toWord().toString(), this.response.toWord().toString(), null);
 	}
 
+	@Override
 	public void optimise() {
 		if (this.state == 2) {
 			optimiseState2();
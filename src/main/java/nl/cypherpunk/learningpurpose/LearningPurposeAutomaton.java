@@ -0,0 +1,344 @@
+package nl.cypherpunk.learningpurpose;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.automatalib.words.WordBuilder;
+import nl.cypherpunk.statelearner.DisabledPrefixes;
+import nl.cypherpunk.statelearner.Utils;
+
+/**
+ * Learning purpose defined in the configuration as an automaton over inputs and
+ * outputs. The definition is a list of rules separated by <code>;</code>, each
+ * of the form
+ *
+ * <pre>
+ * &lt;state&gt; in|out &lt;guard&gt; -&gt; &lt;target&gt;
+ * </pre>
+ *
+ * The first state named in the definition is the initial state, a source state
+ * <code>*</code> applies the rule in every state. For every input or output the
+ * first matching rule of the current state is used, in the order of the
+ * definition. Without a matching rule the state does not change.
+ *
+ * Guards are <code>*</code> (any symbol), a symbol, <code>~text</code> (symbol
+ * containing text), <code>@property</code> (one of the space separated symbols
+ * of another configuration property, e.g. <code>@disable_outputs</code>) or, for
+ * outputs, <code>=last</code> (same as the previous output, i.e. a
+ * retransmission). A guard prefixed with <code>!</code> is negated. Outputs are
+ * matched without their timestamp.
+ *
+ * Targets are a state, <code>sink</code> (the symbol is processed, every
+ * following input is disabled) or <code>disable</code> (the input and every
+ * following input are disabled).
+ *
+ * The rules are compiled into a row of targets per symbol, indexed by state.
+ * Rows for inputs are built for the alphabet up front, rows for outputs the first
+ * time an output is seen, so running the automaton is a table lookup per symbol.
+ * A compiled automaton is shared, every oracle gets its own run from
+ * {@link #newRun(DisabledPrefixes)}.
+ */
+public class LearningPurposeAutomaton {
+	static final int SINK = -1;
+	static final int DISABLE = -2;
+
+	private static final int GUARD_ANY = 0;
+	private static final int GUARD_SYMBOL = 1;
+	private static final int GUARD_CONTAINS = 2;
+	private static final int GUARD_LIST = 3;
+	private static final int GUARD_LAST = 4;
+
+	private static class Rule {
+		final boolean output;
+		final int guard;
+		final boolean negate;
+		final String value;
+		final Set<String> list;
+		final int target;
+
+		Rule(boolean output, int guard, boolean negate, String value, Set<String> list, int target) {
+			this.output = output;
+			this.guard = guard;
+			this.negate = negate;
+			this.value = value;
+			this.list = list;
+			this.target = target;
+		}
+
+		boolean matches(String sym, boolean same) {
+			boolean m;
+			switch (guard) {
+			case GUARD_SYMBOL:
+				m = sym.equals(value);
+				break;
+			case GUARD_CONTAINS:
+				m = sym.contains(value);
+				break;
+			case GUARD_LIST:
+				m = list.contains(sym);
+				break;
+			case GUARD_LAST:
+				m = same;
+				break;
+			default:
+				m = true;
+			}
+			return m != negate;
+		}
+	}
+
+	private final String definition;
+	private final List<String> states = new ArrayList<>();
+	private final List<List<Rule>> rules = new ArrayList<>();
+	private final int initial;
+
+	// Target per state for every input, and per state for a new and a repeated
+	// output for every output
+	private final Map<String, int[]> inputRows = new ConcurrentHashMap<>();
+	private final Map<String, int[]> outputRows = new ConcurrentHashMap<>();
+	// Inputs leading to sink or disable per state
+	private final List<List<String>> disabledInputs = new ArrayList<>();
+
+	/**
+	 * @param definition
+	 *            Rules as described above
+	 * @param alphabet
+	 *            Input alphabet
+	 * @param properties
+	 *            Configuration, for lists referred to by <code>@property</code>
+	 */
+	public LearningPurposeAutomaton(String definition, List<String> alphabet, Properties properties) {
+		this.definition = definition;
+
+		List<String[]> parsed = new ArrayList<>();
+		for (String r : definition.split(";")) {
+			r = r.trim();
+			if (r.isEmpty())
+				continue;
+			String[] tokens = r.split("\\s+");
+			if (tokens.length != 5 || !tokens[3].equals("->") || !(tokens[1].equals("in") || tokens[1].equals("out")))
+				throw new IllegalArgumentException("Invalid learning purpose rule: " + r);
+			parsed.add(tokens);
+			if (!tokens[0].equals("*"))
+				state(tokens[0]);
+			if (!isSpecial(tokens[4]))
+				state(tokens[4]);
+		}
+		if (states.isEmpty())
+			throw new IllegalArgumentException("Learning purpose does not name any state: " + definition);
+		initial = 0;
+
+		for (int s = 0; s < states.size(); s++) {
+			rules.add(new ArrayList<Rule>());
+		}
+		for (String[] tokens : parsed) {
+			Rule rule = parseRule(tokens, properties);
+			for (int s = 0; s < states.size(); s++) {
+				if (tokens[0].equals("*") || tokens[0].equals(states.get(s)))
+					rules.get(s).add(rule);
+			}
+		}
+
+		for (String input : alphabet) {
+			inputRows.put(input, compile(input, false));
+		}
+		for (int s = 0; s < states.size(); s++) {
+			List<String> disabled = new ArrayList<>();
+			for (String input : alphabet) {
+				if (inputRows.get(input)[s] < 0)
+					disabled.add(input);
+			}
+			disabledInputs.add(disabled);
+		}
+	}
+
+	private int state(String name) {
+		int s = states.indexOf(name);
+		if (s == -1) {
+			states.add(name);
+			s = states.size() - 1;
+		}
+		return s;
+	}
+
+	private static boolean isSpecial(String target) {
+		return target.equals("sink") || target.equals("disable");
+	}
+
+	private Rule parseRule(String[] tokens, Properties properties) {
+		boolean output = tokens[1].equals("out");
+		String g = tokens[2];
+		boolean negate = g.startsWith("!");
+		if (negate)
+			g = g.substring(1);
+
+		int guard;
+		String value = null;
+		Set<String> list = null;
+		if (g.equals("*")) {
+			guard = GUARD_ANY;
+		} else if (g.equals("=last")) {
+			if (!output)
+				throw new IllegalArgumentException("=last can only be used for outputs: " + String.join(" ", tokens));
+			guard = GUARD_LAST;
+		} else if (g.startsWith("~")) {
+			guard = GUARD_CONTAINS;
+			value = g.substring(1);
+		} else if (g.startsWith("@")) {
+			guard = GUARD_LIST;
+			String p = properties.getProperty(g.substring(1));
+			if (p == null)
+				throw new IllegalArgumentException("Unknown property in learning purpose: " + g);
+			list = new HashSet<>(Arrays.asList(p.trim().split("\\s+")));
+		} else {
+			guard = GUARD_SYMBOL;
+			value = g;
+		}
+
+		int target;
+		if (tokens[4].equals("sink"))
+			target = SINK;
+		else if (tokens[4].equals("disable"))
+			target = DISABLE;
+		else
+			target = states.indexOf(tokens[4]);
+
+		if (output && target == DISABLE)
+			throw new IllegalArgumentException("Outputs can not be disabled, use sink: " + String.join(" ", tokens));
+
+		return new Rule(output, guard, negate, value, list, target);
+	}
+
+	/*
+	 * Evaluate the rules of every state for a symbol. For outputs the row has the
+	 * target for a new output at 2 * state and for a repeated output at 2 * state +
+	 * 1.
+	 */
+	private int[] compile(String sym, boolean output) {
+		int[] row = new int[output ? 2 * states.size() : states.size()];
+		for (int s = 0; s < states.size(); s++) {
+			if (output) {
+				row[2 * s] = target(s, sym, true, false);
+				row[2 * s + 1] = target(s, sym, true, true);
+			} else {
+				row[s] = target(s, sym, false, false);
+			}
+		}
+		return row;
+	}
+
+	private int target(int state, String sym, boolean output, boolean same) {
+		for (Rule rule : rules.get(state)) {
+			if (rule.output == output && rule.matches(sym, same))
+				return rule.target;
+		}
+		return state;
+	}
+
+	int[] inputRow(String input) {
+		int[] row = inputRows.get(input);
+		if (row == null) {
+			row = compile(input, false);
+			inputRows.put(input, row);
+		}
+		return row;
+	}
+
+	int[] outputRow(String output) {
+		int[] row = outputRows.get(output);
+		if (row == null) {
+			row = compile(output, true);
+			outputRows.put(output, row);
+		}
+		return row;
+	}
+
+	public String getDefinition() {
+		return definition;
+	}
+
+	public List<String> getStates() {
+		return states;
+	}
+
+	/**
+	 * @return New run of the automaton, recording disabled prefixes in the given
+	 *         store
+	 */
+	public LearningPurposeEngine newRun(DisabledPrefixes disabledPrefixes) {
+		return new Run(disabledPrefixes);
+	}
+
+	private class Run implements LearningPurposeEngine {
+		private final DisabledPrefixes disabledPrefixes;
+		private final WordBuilder<String> query = new WordBuilder<>();
+		private final WordBuilder<String> response = new WordBuilder<>();
+		private int state;
+		// Set when an input has been disabled, state is then the state before it
+		private boolean disabled;
+		private boolean expectOutput;
+		private int[] lastOutput;
+
+		Run(DisabledPrefixes disabledPrefixes) {
+			this.disabledPrefixes = disabledPrefixes;
+			reset();
+		}
+
+		@Override
+		public boolean run(String sym) {
+			if (disabled || state == SINK)
+				return false;
+
+			if (expectOutput) {
+				int[] row = outputRow(Utils.stripTimestamp(sym));
+				response.append(sym);
+				state = row[2 * state + (row == lastOutput ? 1 : 0)];
+				lastOutput = row;
+				expectOutput = false;
+				return true;
+			}
+
+			int next = inputRow(sym)[state];
+			if (next == DISABLE) {
+				disabled = true;
+				return false;
+			}
+			query.append(sym);
+			state = next;
+			expectOutput = true;
+			return true;
+		}
+
+		@Override
+		public void reset() {
+			state = initial;
+			disabled = false;
+			expectOutput = false;
+			lastOutput = null;
+			query.clear();
+			response.clear();
+		}
+
+		@Override
+		public void optimise() {
+			if (query.size() != response.size()) {
+				// The last input led to a sink, its output is unknown
+				return;
+			}
+			// Facts for the empty prefix are stored under the empty string
+			String q = query.size() == 0 ? "" : query.toWord().toString();
+			String r = response.size() == 0 ? "" : response.toWord().toString();
+			if (state == SINK) {
+				disabledPrefixes.add(q, r, null);
+			} else if (!disabledInputs.get(state).isEmpty()) {
+				disabledPrefixes.add(q, r, disabledInputs.get(state));
+			}
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package nl.cypherpunk.learningpurpose;
+
+/**
+ * Learning purpose run alongside every query: it sees each input before it is
+ * sent and each output after it is received, and decides which inputs are
+ * disabled.
+ */
+public interface LearningPurposeEngine {
+	/**
+	 * @param sym
+	 *            Next input, or the output to the last input
+	 * @return false if the input is disabled and should not be sent
+	 */
+	boolean run(String sym);
+
+	void reset();
+
+	/**
+	 * Record what the purpose knows about the query it has just run, once the
+	 * response has been accepted.
+	 */
+	void optimise();
+}
@@ -1,18 +1,16 @@
 package nl.cypherpunk.learningpurpose;
 
-import java.sql.Connection;
 import java.util.ArrayList;
 
-import net.automatalib.words.Word;
 import net.automatalib.words.WordBuilder;
 import net.automatalib.words.impl.SimpleAlphabet;
+import nl.cypherpunk.statelearner.DisabledPrefixes;
 import nl.cypherpunk.statelearner.LearningConfig;
-import nl.cypherpunk.statelearner.LogOracle;
 import nl.cypherpunk.statelearner.Utils;
 
-public class LearningPurposeWiFi {
+public class LearningPurposeWiFi implements LearningPurposeEngine {
 
-	private Connection dbConn;
+	private DisabledPrefixes disabledPrefixes;
 	private int state = 0;
 	private String last_message = "";
 	private ArrayList<String> resetOutputs;
@@ -23,7 +21,7 @@ public class LearningPurposeWiFi {
 	private SimpleAlphabet<String> alphabet;
 
 	public LearningPurposeWiFi(LearningConfig config) {
-		this.dbConn = config.getDbConn();
+		this.disabledPrefixes = config.getDisabledPrefixes();
 
 		// Reset/Disable outputs
 		this.resetOutputs = config.getDisable_outputs();
@@ -34,6 +32,7 @@ public class LearningPurposeWiFi {
 		this.alphabet = config.getAlphabet();
 	}
 
+	@Override
 	public boolean run(String sym) {
 		this.queryIndex++;
 		if (queryIndex >= 2 && sym.contains("ASSOC")) {
@@ -65,6 +64,7 @@ public class LearningPurposeWiFi {
 		}
 	}
 
+	@Override
 	public void reset() {
 		this.state = 0;
 		this.queryIndex = 0;
@@ -123,13 +123,12 @@ public class LearningPurposeWiFi {
 			// This shouldn't happen, but if it does we can safely return null
 			return;
 		}
+		ArrayList<String> disabled = new ArrayList<>();
 		for (String s : this.alphabet) {
-			if (!this.postRetransInputs.contains(s)) {
-				String q = this.query.toWord().toString() + " " + s;
-				String r = this.response.toWord().toString() + " " + LogOracle.DISABLE_OUTPUT;
-				Utils.cacheStringQueryResponse(q, r, dbConn, true);
-			}
+			if (!this.postRetransInputs.contains(s))
+				disabled.add(s);
 		}
+		disabledPrefixes.add(this.query.toWord().toString(), this.response.toWord().toString(), disabled);
 	}
 
 	private void optimiseDisableState() {
@@ -137,13 +136,11 @@ public class LearningPurposeWiFi {
 			// This shouldn't happen, but if it does we can safely return null
 			return;
 		}
-		for (String s : this.alphabet) {
-			String q = this.query.toWord().toString() + " " + s;
-			String r = this.response.toWord().toString() + " " + LogOracle.DISABLE_OUTPUT;
-			Utils.cacheStringQueryResponse(q, r, dbConn, true);
-		}
+		// Every input is disabled
+		disabledPrefixes.add(this.query.toWord().toString(), this.response.toWord().toString(), null);
 	}
 
+	@Override
 	public void optimise() {
 		if (this.state == 2) {
 			optimiseState2();
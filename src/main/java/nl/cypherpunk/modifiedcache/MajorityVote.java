@@ -0,0 +1,183 @@
+/*
+ *  Copyright (c) 2016 Joeri de Ruiter
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package nl.cypherpunk.modifiedcache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+
+import de.learnlib.logging.LearnLogger;
+import net.automatalib.words.Word;
+import nl.cypherpunk.statelearner.Utils;
+import nl.cypherpunk.statelearner.LogOracle.MealyLogOracle;
+
+/**
+ * Asks a contested query to several instances of the SUL at the same time and
+ * takes the answer given by most of them, so a conflict costs one round of
+ * queries instead of one per retry. Every instance is a separate
+ * {@link MealyLogOracle} on a fork of the SUL, so answers go through the
+ * learning purpose and are counted in the cache database like any other
+ * observation.
+ *
+ * Answers are compared without timestamps. For every instance the number of
+ * times it disagreed with the majority, or failed, is kept, to find a flaky
+ * adapter or access point.
+ *
+ * @param <I>
+ *            input symbol class
+ * @param <O>
+ *            output symbol class
+ */
+public class MajorityVote<I, O> {
+	private final List<MealyLogOracle<I, O>> instances;
+	private final ExecutorService executor;
+	private final AtomicLongArray disagreements;
+	private long votes = 0;
+	private final LearnLogger log;
+
+	public MajorityVote(List<MealyLogOracle<I, O>> instances) {
+		this.instances = instances;
+		this.disagreements = new AtomicLongArray(instances.size());
+		this.executor = Executors.newFixedThreadPool(instances.size(), new ThreadFactory() {
+			private int n = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "MajorityVote-" + n++);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.log = LearnLogger.getLogger("NONDETER");
+	}
+
+	public int getInstances() {
+		return instances.size();
+	}
+
+	/**
+	 * Ask the query to every instance at once.
+	 *
+	 * @return The answer of the majority of the instances, the one of the first
+	 *         instance on a tie, or null if every instance failed
+	 */
+	public Word<O> vote(final Word<I> input) {
+		List<Future<Word<O>>> futures = new ArrayList<>();
+		for (final MealyLogOracle<I, O> instance : instances) {
+			futures.add(executor.submit(new Callable<Word<O>>() {
+				@Override
+				public Word<O> call() throws Exception {
+					return instance.answerQuery(Word.<I> epsilon(), input, false);
+				}
+			}));
+		}
+
+		// Group the instances by answer
+		Map<String, List<Integer>> groups = new LinkedHashMap<>();
+		List<Word<O>> answers = new ArrayList<>();
+		for (int i = 0; i < futures.size(); i++) {
+			Word<O> answer = null;
+			try {
+				answer = futures.get(i).get();
+			} catch (ExecutionException e) {
+				log.log(Level.WARNING, "Instance " + i + " failed to answer " + input + ": " + e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			answers.add(answer);
+			if (answer == null)
+				continue;
+
+			String key = stripTimestamps(answer);
+			List<Integer> group = groups.get(key);
+			if (group == null) {
+				group = new ArrayList<>();
+				groups.put(key, group);
+			}
+			group.add(i);
+		}
+
+		List<Integer> majority = null;
+		for (List<Integer> group : groups.values()) {
+			if (majority == null || group.size() > majority.size())
+				majority = group;
+		}
+
+		synchronized (this) {
+			votes++;
+		}
+		for (int i = 0; i < instances.size(); i++) {
+			if (majority == null || !majority.contains(i))
+				disagreements.incrementAndGet(i);
+		}
+		if (majority == null) {
+			log.log(Level.WARNING, "No instance answered " + input);
+			return null;
+		}
+
+		Word<O> answer = answers.get(majority.get(0));
+		if (groups.size() > 1) {
+			log.log(Level.INFO, "Vote on " + input + ": " + majority.size() + " of " + instances.size()
+					+ " instances answered " + answer + ", answers " + groups.keySet());
+		}
+		return answer;
+	}
+
+	/**
+	 * @return Per instance, the number of votes in which it disagreed with the
+	 *         majority or failed
+	 */
+	public long[] getDisagreements() {
+		long[] counts = new long[disagreements.length()];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = disagreements.get(i);
+		}
+		return counts;
+	}
+
+	public String getSummary() {
+		long total;
+		synchronized (this) {
+			total = votes;
+		}
+		return "Majority votes: " + total + ", disagreements per instance: " + Arrays.toString(getDisagreements());
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private static String stripTimestamps(Word<?> word) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < word.length(); i++) {
+			if (i > 0)
+				sb.append(' ');
+			sb.append(Utils.stripTimestamp(String.valueOf(word.getSymbol(i))));
+		}
+		return sb.toString();
+	}
+}
@@ -41,6 +41,8 @@ final class MasterQuery<I,O> extends AbstractQuery<I,Word<O>> {
 	private final Mapping<? super O,? extends O> errorSyms;
 	
 	private final List<Query<I,Word<O>>> slaves;
+	// Answered by a query filter instead of the cache
+	private boolean filtered = false;
 		
 	public MasterQuery(Word<I> word) {
 		this(word, (Mapping<? super O,? extends O>)null);
@@ -59,6 +61,19 @@ final class MasterQuery<I,O> extends AbstractQuery<I,Word<O>> {
 		this.slaves = new ArrayList<>();
 	}
 
+	/**
+	 * Master query answered by a {@link QueryFilter}.
+	 */
+	public static <I,O> MasterQuery<I,O> filtered(Word<I> word, Word<O> output) {
+		MasterQuery<I,O> master = new MasterQuery<>(word, output);
+		master.filtered = true;
+		return master;
+	}
+
+	public boolean isFiltered() {
+		return filtered;
+	}
+
 	public Word<O> getAnswer() {
 		return answer;
 	}
@@ -24,8 +24,10 @@ import java.util.Collection;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiPredicate;
 import java.util.logging.Level;
 
 import javax.naming.ConfigurationException;
@@ -35,6 +37,7 @@ import net.automatalib.commons.util.array.RichArray;
 import net.automatalib.commons.util.comparison.CmpUtil;
 import net.automatalib.commons.util.mappings.Mapping;
 import net.automatalib.incremental.ConflictException;
+import net.automatalib.ts.transout.MealyTransitionSystem;
 import net.automatalib.incremental.mealy.IncrementalMealyBuilder;
 import net.automatalib.incremental.mealy.tree.IncrementalMealyTreeBuilder;
 import net.automatalib.words.Alphabet;
@@ -48,6 +51,7 @@ import de.learnlib.cache.mealy.MealyCacheConsistencyTest;
 import de.learnlib.logging.LearnLogger;
 import de.learnlib.oracles.DefaultQuery;
 
+import nl.cypherpunk.statelearner.LearnerMetrics;
 import nl.cypherpunk.statelearner.Utils;
 import nl.cypherpunk.statelearner.LogOracle.MealyLogOracle;
 
@@ -75,6 +79,8 @@ import nl.cypherpunk.statelearner.LogOracle.MealyLogOracle;
  *            output symbol class
  */
 public class MealyCacheOracle<I, O> implements MealyLearningCacheOracle<I, O> {
+	// Upper limit for the number of times a conflicting query is asked again
+	static final int MAX_CONFLICT_RETRIES = 10;
 
 	private static final class ReverseLexCmp<I> implements Comparator<Query<I, ?>> {
 		private final Alphabet<I> alphabet;
@@ -102,6 +108,12 @@ public class MealyCacheOracle<I, O> implements MealyLearningCacheOracle<I, O> {
 	private final Mapping<? super O, ? extends O> errorSyms;
 	private Connection dbConn;
 	private LearnLogger log;
+	private boolean conflictRepair = false;
+	private QueryFilter<I, O> filter;
+	private long filtered = 0;
+	private SequentialTest sequentialTest;
+	private MajorityVote<I, O> majorityVote;
+	private final List<DefaultQuery<I, Word<O>>> repairs = new ArrayList<>();
 
 	public MealyCacheOracle(IncrementalMealyBuilder<I, O> incrementalBuilder, Mapping<? super O, ? extends O> errorSyms,
 			MealyLogOracle<I, O> delegate, Connection dbConn) {
@@ -127,6 +139,136 @@ public class MealyCacheOracle<I, O> implements MealyLearningCacheOracle<I, O> {
 		return incMealy.asGraph().size();
 	}
 
+	/**
+	 * Enable repairing the cache when a conflicting observation turns out to be
+	 * the most common one. Instead of throwing a {@link ConflictException}, the
+	 * conflicting part of the cache is replaced and the corrected observation is
+	 * made available through {@link #drainRepairs()}.
+	 */
+	public void setConflictRepair(boolean conflictRepair) {
+		this.conflictRepair = conflictRepair && (incMealy instanceof IncrementalMealyDAGBuilder);
+	}
+
+	/**
+	 * Answer queries accepted by the given filter in memory, without the cache,
+	 * database or delegate oracle.
+	 */
+	public void setQueryFilter(QueryFilter<I, O> filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * Decide conflicts by observing the contested query until the given test
+	 * accepts one of its responses, instead of comparing with the most frequent
+	 * response once.
+	 */
+	public void setSequentialTest(SequentialTest sequentialTest) {
+		this.sequentialTest = sequentialTest;
+	}
+
+	/**
+	 * Decide conflicts by asking the query to several instances of the SUL at
+	 * once and taking the majority answer, instead of retrying it on the delegate.
+	 */
+	public void setMajorityVote(MajorityVote<I, O> majorityVote) {
+		this.majorityVote = majorityVote;
+	}
+
+	/**
+	 * @return Number of queries answered by the query filter
+	 */
+	public long getFilteredQueries() {
+		return filtered;
+	}
+
+	/**
+	 * Replace the cached output for the given input word. Everything stored for
+	 * the word from the first symbol at which the cache disagrees with the given
+	 * output onwards is removed, after which the new observation is inserted.
+	 * 
+	 * @param input
+	 *            the input word
+	 * @param output
+	 *            the corrected output word
+	 */
+	public void repair(Word<I> input, Word<O> output) {
+		incMealyLock.lock();
+		try {
+			WordBuilder<O> wb = new WordBuilder<>();
+			incMealy.lookup(input, wb);
+			int i = 0;
+			while (i < wb.size() && Objects.equals(wb.getSymbol(i), output.getSymbol(i))) {
+				i++;
+			}
+			if (i < wb.size()) {
+				((IncrementalMealyDAGBuilder<I, O>) incMealy).remove(input.prefix(i + 1));
+			}
+			incMealy.insert(input, output);
+		} finally {
+			incMealyLock.unlock();
+		}
+	}
+
+	/**
+	 * Remove everything cached from the first output of a word that the given
+	 * test accepts. The test is given each output and the output before it, or
+	 * null for the first output of a word.
+	 * 
+	 * @return Number of input words whose cached outputs were removed
+	 */
+	public int removeFrom(BiPredicate<? super O, ? super O> test) {
+		if (!(incMealy instanceof IncrementalMealyDAGBuilder))
+			return 0;
+		incMealyLock.lock();
+		try {
+			List<Word<I>> words = new ArrayList<>();
+			collect(incMealy.asTransitionSystem(), test, words);
+			int removed = 0;
+			for (Word<I> word : words) {
+				if (((IncrementalMealyDAGBuilder<I, O>) incMealy).remove(word))
+					removed++;
+			}
+			return removed;
+		} finally {
+			incMealyLock.unlock();
+		}
+	}
+
+	private <S, T> void collect(MealyTransitionSystem<S, I, T, O> system, BiPredicate<? super O, ? super O> test,
+			List<Word<I>> words) {
+		collect(system, system.getInitialState(), new WordBuilder<I>(), null, test, words);
+	}
+
+	/*
+	 * Depth first over all cached words, which stops at the first output the test
+	 * accepts
+	 */
+	private <S, T> void collect(MealyTransitionSystem<S, I, T, O> system, S state, WordBuilder<I> word, O previous,
+			BiPredicate<? super O, ? super O> test, List<Word<I>> words) {
+		for (I input : incMealy.getInputAlphabet()) {
+			T transition = system.getTransition(state, input);
+			if (transition == null)
+				continue;
+			O output = system.getTransitionOutput(transition);
+			word.append(input);
+			if (test.test(output, previous))
+				words.add(word.toWord());
+			else
+				collect(system, system.getSuccessor(transition), word, output, test, words);
+			word.truncate(word.size() - 1);
+		}
+	}
+
+	/**
+	 * @return The corrected observations since the last call, which the learner
+	 *         has to be refined with
+	 */
+	public List<DefaultQuery<I, Word<O>>> drainRepairs() {
+		List<DefaultQuery<I, Word<O>>> drained = new ArrayList<>(repairs);
+		repairs.clear();
+		return drained;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -152,6 +294,8 @@ public class MealyCacheOracle<I, O> implements MealyLearningCacheOracle<I, O> {
 		qrys.parallelSort(queryCmp);
 
 		List<MasterQuery<I, O>> masterQueries = new ArrayList<>();
+		long filteredSlaves = 0;
+		long cachedSlaves = 0;
 
 		Iterator<Query<I, Word<O>>> it = qrys.iterator();
 		Query<I, Word<O>> q = it.next();
@@ -160,21 +304,33 @@ public class MealyCacheOracle<I, O> implements MealyLearningCacheOracle<I, O> {
 		incMealyLock.lock();
 		try {
 			MasterQuery<I, O> master = createMasterQuery(ref);
+			boolean isFiltered = master.isFiltered();
+			boolean isCached = master.isAnswered() && !isFiltered;
 			if (!master.isAnswered()) {
 				masterQueries.add(master);
 			}
 			master.addSlave(q);
+			if (isFiltered)
+				filteredSlaves++;
+			else if (isCached)
+				cachedSlaves++;
 
 			while (it.hasNext()) {
 				q = it.next();
 				Word<I> curr = q.getInput();
 				if (!curr.isPrefixOf(ref)) {
 					master = createMasterQuery(curr);
+					isFiltered = master.isFiltered();
+					isCached = master.isAnswered() && !isFiltered;
 					if (!master.isAnswered()) {
 						masterQueries.add(master);
 					}
 				}
 				master.addSlave(q);
+				if (isFiltered)
+					filteredSlaves++;
+				else if (isCached)
+					cachedSlaves++;
 				// Update ref to increase the effectiveness of the length check in
 				// isPrefixOf
 				ref = curr;
@@ -183,19 +339,25 @@ public class MealyCacheOracle<I, O> implements MealyLearningCacheOracle<I, O> {
 			incMealyLock.unlock();
 		}
 
+		// Slaves of the unanswered masters share the round trip of their master, so
+		// only the slaves of masters answered by the DAG count as hits
+		filtered += filteredSlaves;
+		LearnerMetrics.get().filtered(filteredSlaves);
+		LearnerMetrics.get().dagHits(cachedSlaves);
+
 		incMealyLock.lock();
 		try {
 			for (MasterQuery<I, O> m : masterQueries) {
 				Word<O> output = delegate.answerQuery(m.getPrefix(), m.getSuffix());
 				m.answer(output);
-				postProcess(m);
+				postProcess(m, 0);
 			}
 		} finally {
 			incMealyLock.unlock();
 		}
 	}
 
-	private void postProcess(MasterQuery<I, O> master) {
+	private void postProcess(MasterQuery<I, O> master, int retries) {
 		Word<I> input_suffix = master.getSuffix();
 		Word<O> answer = master.getAnswer();
 		Word<I> input = master.getInput();
@@ -206,6 +368,7 @@ public class MealyCacheOracle<I, O> implements MealyLearningCacheOracle<I, O> {
 				delegate.lpPostProcess();
 			} catch (ConflictException e) {
 				// Assumes observation count already incremented.
+				LearnerMetrics.get().conflict();
 
 				// Inconsistent query/response
 				String qr = e.getMessage();
@@ -215,24 +378,49 @@ public class MealyCacheOracle<I, O> implements MealyLearningCacheOracle<I, O> {
 				String ir = qr.substring(qr.indexOf(" / ") + 3);
 
 				// Get current most observed response
-				Word<O> common_response = Utils.cacheLookupQuery(iq, 0, dbConn);
+				Word<O> voted = (majorityVote != null) ? majorityVote.vote(input) : null;
+				Word<O> common_response;
+				if (voted != null)
+					common_response = voted.prefix(Math.min(voted.length(), contestedLength(iq)));
+				else if (sequentialTest != null)
+					common_response = sample(input, iq);
+				else
+					common_response = cacheLookup(iq);
 
 				// Check whether current model is wrong by testing equality between
-				// common_response and ir (inconsistent response)
-				if (common_response.toString().equals(ir)) {
-					// Correct Cache and Restart learning
+				// common_response and ir (inconsistent response), ignoring timestamps
+				if (agrees(common_response, ir)) {
+					// Correct Cache
 					Utils.correctDBcache(iq, ir, dbConn);
+					delegate.correctDisabledPrefixes(iq, ir);
 					log.log(Level.INFO, "Deleting all cached queries with inconsisent prefix: " + iq);
-					throw new ConflictException("Failed initial consistency correction, deleted all prefixes");
+					if (!conflictRepair) {
+						// Restart learning
+						throw new ConflictException("Failed initial consistency correction, deleted all prefixes");
+					}
+					// Replace the subtree in the cache and let the learner refine with
+					// the corrected observation
+					repair(input_suffix, answer);
+					LearnerMetrics.get().conflictRepair();
+					repairs.add(new DefaultQuery<>(Word.<I> epsilon(), input_suffix, answer));
+					delegate.lpPostProcess();
 				} else {
+					if (retries >= MAX_CONFLICT_RETRIES) {
+						// Restart learning instead of asking the query forever
+						throw new ConflictException("Conflict for " + iq + " not resolved after " + retries
+								+ " retries");
+					}
+
 					// Retry
+					LearnerMetrics.get().conflictRetry();
 					MasterQuery<I, O> retry = createMasterQuery(input);
-					//Ask query, dont use cache
-					Word<O> output = delegate.answerQuery(Word.epsilon(),retry.getInput(), false);
+					//Ask query, dont use cache, unless the instances already voted on it
+					Word<O> output = (voted != null) ? voted
+							: delegate.answerQuery(Word.epsilon(), retry.getInput(), false);
 					retry.answer(output);
 					incMealyLock.lock();
 					try {
-						postProcess(retry);
+						postProcess(retry, retries + 1);
 					} finally {
 						incMealyLock.unlock();
 					}
@@ -257,12 +445,73 @@ public class MealyCacheOracle<I, O> implements MealyLearningCacheOracle<I, O> {
 		}
 	}
 
+	/*
+	 * Observe the contested prefix of the input again until the sequential test
+	 * accepts the most frequent response, and return that response. Every
+	 * observation is counted in the cache database by the delegate.
+	 */
+	private Word<O> sample(Word<I> input, String iq) {
+		Word<I> contested = input.prefix(Math.min(input.length(), contestedLength(iq)));
+		List<Integer> counts = Utils.cacheResponseCounts(iq, dbConn);
+		int samples = 0;
+		while (samples < sequentialTest.getMaxSamples() && !sequentialTest.isDecided(count(counts, 0), count(counts, 1))) {
+			LearnerMetrics.get().conflictSample();
+			delegate.answerQuery(Word.<I> epsilon(), contested, false);
+			samples++;
+			counts = Utils.cacheResponseCounts(iq, dbConn);
+		}
+		log.log(Level.INFO, "Observed " + iq + " " + samples + " more times, responses seen " + counts + " times"
+				+ (sequentialTest.isDecided(count(counts, 0), count(counts, 1)) ? "" : ", undecided"));
+		return cacheLookup(iq);
+	}
+
+	/*
+	 * Most common response to the query in the cache database. The database
+	 * stores the outputs of the delegate, so they are of the output type.
+	 */
+	@SuppressWarnings("unchecked")
+	private Word<O> cacheLookup(String iq) {
+		return (Word<O>) Utils.cacheLookupQuery(iq, 0, dbConn);
+	}
+
+	/*
+	 * Whether the response agrees with the inconsistent response of a conflict,
+	 * ignoring timestamps as TimeoutEscalation.agrees does.
+	 */
+	private static boolean agrees(Word<?> response, String ir) {
+		if (response == null)
+			return false;
+		String[] expected = response.toString().trim().split("\\s+");
+		String[] observed = ir.trim().split("\\s+");
+		if (expected.length != observed.length)
+			return false;
+		for (int i = 0; i < expected.length; i++) {
+			if (!Utils.stripTimestamp(expected[i]).equals(Utils.stripTimestamp(observed[i])))
+				return false;
+		}
+		return true;
+	}
+
+	private static int contestedLength(String iq) {
+		return iq.trim().split("\\s+").length;
+	}
+
+	private static int count(List<Integer> counts, int i) {
+		return i < counts.size() ? counts.get(i) : 0;
+	}
+
 	private MasterQuery<I, O> createMasterQuery(Word<I> word) {
 		WordBuilder<O> wb = new WordBuilder<>();
 		if (incMealy.lookup(word, wb)) {
 			return new MasterQuery<>(word, wb.toWord());
 		}
 
+		if (filter != null) {
+			Word<O> output = filter.answer(word);
+			if (output != null)
+				return MasterQuery.filtered(word, output);
+		}
+
 		if (errorSyms == null) {
 			return new MasterQuery<>(word);
 		}
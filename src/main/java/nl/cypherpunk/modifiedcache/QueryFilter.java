@@ -0,0 +1,38 @@
+/*
+ *  Copyright (c) 2016 Joeri de Ruiter
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package nl.cypherpunk.modifiedcache;
+
+import net.automatalib.words.Word;
+
+/**
+ * Filter consulted by {@link MealyCacheOracle} while grouping queries, for
+ * queries whose output is known without asking them, for example because the
+ * learning purpose disables them. Filtered queries are answered in memory and
+ * are not stored in the cache.
+ *
+ * @param <I>
+ *            input symbol class
+ * @param <O>
+ *            output symbol class
+ */
+public interface QueryFilter<I, O> {
+	/**
+	 * @return The output for the complete input word, or null if the word has to
+	 *         be answered by the cache or the delegate oracle
+	 */
+	Word<O> answer(Word<I> input);
+}
@@ -0,0 +1,89 @@
+/*
+ *  Copyright (c) 2016 Joeri de Ruiter
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package nl.cypherpunk.modifiedcache;
+
+/**
+ * Sequential test deciding which of the responses observed for a contested
+ * query is the real one. After every observation the two most frequent
+ * responses are compared: the most frequent one is accepted once the lower
+ * bound of the Wilson score interval for its share of the two exceeds one half
+ * at the configured confidence. Sampling stops as soon as that is the case, or
+ * when the maximum number of additional observations is reached.
+ */
+public class SequentialTest {
+	private final double confidence;
+	private final double z;
+	private final int maxSamples;
+
+	/**
+	 * @param confidence
+	 *            One sided confidence level, e.g. 0.95
+	 * @param maxSamples
+	 *            Maximum number of additional observations per conflict, after
+	 *            which the most frequent response is accepted anyway
+	 */
+	public SequentialTest(double confidence, int maxSamples) {
+		if (confidence <= 0.5 || confidence >= 1)
+			throw new IllegalArgumentException("Confidence has to be between 0.5 and 1: " + confidence);
+		this.confidence = confidence;
+		this.z = quantile(confidence);
+		this.maxSamples = maxSamples;
+	}
+
+	public double getConfidence() {
+		return confidence;
+	}
+
+	public int getMaxSamples() {
+		return maxSamples;
+	}
+
+	/**
+	 * @param first
+	 *            Observations of the most frequent response
+	 * @param second
+	 *            Observations of the second most frequent response
+	 * @return Whether the most frequent response is the majority with the
+	 *         configured confidence
+	 */
+	public boolean isDecided(int first, int second) {
+		return lowerBound(first, first + second, z) > 0.5;
+	}
+
+	/**
+	 * Lower bound of the Wilson score interval for a proportion.
+	 */
+	static double lowerBound(int successes, int n, double z) {
+		if (n == 0)
+			return 0;
+		double p = (double) successes / n;
+		double z2 = z * z;
+		double centre = p + z2 / (2 * n);
+		double margin = z * Math.sqrt(p * (1 - p) / n + z2 / (4.0 * n * n));
+		return (centre - margin) / (1 + z2 / n);
+	}
+
+	/*
+	 * Quantile of the standard normal distribution, using the rational
+	 * approximation 26.2.23 of Abramowitz and Stegun (error below 4.5e-4).
+	 */
+	static double quantile(double p) {
+		double t = Math.sqrt(-2 * Math.log(1 - p));
+		return t - (2.515517 + 0.802853 * t + 0.010328 * t * t)
+				/ (1 + 1.432788 * t + 0.189269 * t * t + 0.001308 * t * t * t);
+	}
+}
@@ -377,6 +377,126 @@ public class IncrementalMealyDAGBuilder<I, O> extends AbstractIncrementalMealyBu
 		updateInitSignature(finalIdx, last);
 	}
 
+	/**
+	 * Removes all stored information for the given input word and its
+	 * extensions, i.e., the transition for the last symbol of the word is removed
+	 * from the state reached by the rest of the word. Information about other
+	 * words that share states with the removed subtree is left untouched.
+	 * 
+	 * @param word
+	 *            the (non-empty) input word to remove
+	 * @return <tt>true</tt> if information was removed, <tt>false</tt> if the word
+	 *         was not defined
+	 */
+	public boolean remove(Word<? extends I> word) {
+		if (word.isEmpty())
+			return false;
+
+		State curr = init;
+		State conf = null;
+
+		Deque<PathElem> path = new ArrayDeque<>();
+
+		// Find the state reached by all but the last symbol, again storing the
+		// first confluence state on the way
+		for (I sym : word.prefix(word.length() - 1)) {
+			if (conf == null && curr.isConfluence()) {
+				conf = curr;
+			}
+
+			int idx = inputAlphabet.getSymbolIndex(sym);
+			State succ = curr.getSuccessor(idx);
+			if (succ == null)
+				return false;
+			path.push(new PathElem(curr, idx));
+			curr = succ;
+		}
+		if (conf == null && curr.isConfluence()) {
+			conf = curr;
+		}
+
+		int removeIdx = inputAlphabet.getSymbolIndex(word.lastSymbol());
+		State removed = curr.getSuccessor(removeIdx);
+		if (removed == null)
+			return false;
+
+		State last;
+		if (curr == init) {
+			StateSignature sig = init.getSignature();
+			sig.successors[removeIdx] = null;
+			sig.outputs[removeIdx] = null;
+			removed.decreaseIncoming();
+			purge(removed);
+			return true;
+		} else if (conf != null) {
+			// The state is (reachable via) a confluence state, so other words still
+			// need the removed subtree. Register a copy without the transition.
+			if (conf == curr) {
+				conf = null;
+			}
+			StateSignature sig = curr.getSignature().duplicate();
+			sig.successors[removeIdx] = null;
+			sig.outputs[removeIdx] = null;
+			sig.updateHashCode();
+			last = replaceOrRegister(sig);
+		} else {
+			hide(curr);
+			StateSignature sig = curr.getSignature();
+			sig.successors[removeIdx] = null;
+			sig.outputs[removeIdx] = null;
+			sig.updateHashCode();
+			removed.decreaseIncoming();
+			purge(removed);
+			last = replaceOrRegister(curr);
+		}
+
+		if (conf != null) {
+			// Separate the prefix path from other words reaching the confluence
+			// state, as in insert
+			PathElem next;
+			do {
+				next = path.pop();
+				last = clone(next.state, next.transIdx, last);
+			} while (next.state != conf);
+		}
+
+		while (path.size() > 1) {
+			PathElem next = path.pop();
+			State state = next.state;
+			State updated = updateSignature(state, next.transIdx, last);
+			if (state == updated)
+				return true;
+			last = updated;
+		}
+
+		updateInitSignature(path.pop().transIdx, last);
+		return true;
+	}
+
+	/**
+	 * Removes a state that is no longer reachable from the register, together
+	 * with all successors that become unreachable as a result.
+	 * 
+	 * @param state
+	 *            the state to check
+	 */
+	private void purge(State state) {
+		if (state.getNumIncoming() > 0)
+			return;
+
+		StateSignature sig = state.getSignature();
+		if (register.get(sig) == state)
+			register.remove(sig);
+
+		for (int i = 0; i < alphabetSize; i++) {
+			State succ = sig.successors[i];
+			if (succ != null) {
+				succ.decreaseIncoming();
+				purge(succ);
+			}
+		}
+	}
+
 	/**
 	 * Update the signature of the initial state. This requires special handling, as
 	 * the initial state is not stored in the register (since it can never legally
@@ -0,0 +1,151 @@
+/*
+ *  Copyright (c) 2016 Joeri de Ruiter
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package nl.cypherpunk.statelearner;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import de.learnlib.api.EquivalenceOracle.MealyEquivalenceOracle;
+import de.learnlib.oracles.DefaultQuery;
+import net.automatalib.automata.transout.MealyMachine;
+import net.automatalib.words.Word;
+import nl.cypherpunk.modifiedcache.MealyCacheOracle;
+
+/**
+ * Equivalence oracle that only uses observations that have already been made:
+ * first the in-memory caches of the membership and equivalence oracles are
+ * checked for a word on which they disagree with the hypothesis, then the
+ * most common responses stored in the database cache. No queries are sent to
+ * the SUL, so this oracle should be asked before a W-method or random words
+ * oracle.
+ *
+ * @author Joeri de Ruiter (joeri@cs.ru.nl) and Chris McMahon Stone
+ *         (c.mcmahon-stone@cs.bham.ac.uk
+ */
+public class CacheEQOracle implements MealyEquivalenceOracle<String, String> {
+	private final List<MealyCacheOracle<String, String>> caches;
+	private final Connection dbConn;
+
+	/**
+	 * @param caches
+	 *            In-memory caches to check
+	 * @param dbConn
+	 *            Connection to the database cache, or null if it is not used
+	 */
+	public CacheEQOracle(List<MealyCacheOracle<String, String>> caches, Connection dbConn) {
+		this.caches = caches;
+		this.dbConn = dbConn;
+	}
+
+	@Override
+	public DefaultQuery<String, Word<String>> findCounterExample(MealyMachine<?, String, ?, String> hypothesis,
+			Collection<? extends String> inputs) {
+		for (MealyCacheOracle<String, String> cache : caches) {
+			DefaultQuery<String, Word<String>> ce = cache.createCacheConsistencyTest().findCounterExample(hypothesis,
+					inputs);
+			if (ce != null)
+				return ce;
+		}
+
+		if (dbConn == null)
+			return null;
+		return findDatabaseCounterExample(hypothesis, new HashSet<String>(inputs));
+	}
+
+	/*
+	 * Walk through the database cache, shortest queries first, and compare the
+	 * most common response for every query with the hypothesis. Queries that are
+	 * stored in one of the in-memory caches have already been checked and take
+	 * precedence over the database.
+	 */
+	private DefaultQuery<String, Word<String>> findDatabaseCounterExample(
+			MealyMachine<?, String, ?, String> hypothesis, Set<String> inputs) {
+		Statement stmt = null;
+		ResultSet rs = null;
+		try {
+			stmt = dbConn.createStatement();
+			// Same ordering as Utils.cacheLookupQuery, so the first row per query is
+			// the response the membership oracle would return
+			rs = stmt.executeQuery("SELECT PREFIX_ID, RESPONSE FROM " + CachePartition.of(dbConn).cacheTable()
+					+ " WHERE IS_OPTIMISED = 0 ORDER BY LENGTH(PREFIX_ID) ASC, PREFIX_ID ASC, COUNT DESC, ID ASC");
+
+			String previous = null;
+			while (rs.next()) {
+				String prefix = rs.getString("PREFIX_ID");
+				if (prefix.equals(previous))
+					continue;
+				previous = prefix;
+
+				Word<String> query = toWord(prefix, inputs);
+				if (query == null || isCached(query))
+					continue;
+
+				Word<String> response = toWord(rs.getString("RESPONSE"), null);
+				if (response == null || response.length() != query.length())
+					continue;
+
+				if (!Objects.equals(hypothesis.computeOutput(query), response))
+					return new DefaultQuery<>(Word.<String> epsilon(), query, response);
+			}
+		} catch (Exception e) {
+			System.err.println(e.getClass().getName() + ": " + e.getMessage());
+			e.printStackTrace();
+		} finally {
+			try {
+				if (rs != null)
+					rs.close();
+				if (stmt != null)
+					stmt.close();
+			} catch (Exception e) {
+				System.err.println(e.getClass().getName() + ": " + e.getMessage());
+				e.printStackTrace();
+			}
+		}
+		return null;
+	}
+
+	private boolean isCached(Word<String> query) {
+		for (MealyCacheOracle<String, String> cache : caches) {
+			if (cache.getIncMealy().hasDefinitiveInformation(query))
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Convert a space separated string from the database to a word, or return
+	 * null if it contains symbols that are not part of the given inputs.
+	 */
+	private static Word<String> toWord(String s, Set<String> inputs) {
+		String[] symbols = s.trim().split("\\s+");
+		if (symbols.length == 0 || symbols[0].isEmpty())
+			return null;
+		if (inputs != null) {
+			for (String sym : symbols) {
+				if (!inputs.contains(sym))
+					return null;
+			}
+		}
+		return Word.fromArray(symbols, 0, symbols.length);
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ *  Copyright (c) 2016 Joeri de Ruiter
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package nl.cypherpunk.statelearner;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Part of the cache database belonging to one target. Every partition has its
+ * own CACHE_&lt;name&gt; and DISABLED_&lt;name&gt; tables, with their own
+ * indexes, so observations of different targets, alphabets or time learning
+ * settings are never counted together and lookups only search the observations
+ * of the current target. The name is normally a fingerprint of the
+ * configuration, see {@link #forConfig(Properties, List)}. The PARTITIONS
+ * table describes the configuration every partition belongs to.
+ *
+ * The partition is registered for the database connection, so the queries on
+ * the cache find their tables through {@link #of(Connection)}. Connections
+ * without a partition use the unpartitioned CACHE and DISABLED tables.
+ */
+public class CachePartition {
+	public static final CachePartition UNPARTITIONED = new CachePartition(null, "unpartitioned");
+
+	// Properties identifying the target and the settings its responses depend on
+	static final String[] FINGERPRINT_PROPERTIES = { "type", "host", "hostname", "port", "cmd", "cmd_version",
+			"target", "version", "apdu_file", "model_file", "simulator_states", "simulator_outputs",
+			"simulator_seed", "time_learn", "small_timeout", "disable_outputs", "retrans_enabled",
+			"learning_purpose" };
+
+	private static final Map<Connection, CachePartition> partitions = new ConcurrentHashMap<>();
+
+	private final String name;
+	private final String description;
+
+	public CachePartition(String name, String description) {
+		if (name != null && !name.matches("[A-Za-z0-9_]+"))
+			throw new IllegalArgumentException("Invalid cache partition name: " + name);
+		this.name = name;
+		this.description = description;
+	}
+
+	/**
+	 * @return Partition of the configuration with the given alphabet, named by
+	 *         the first 16 hexadecimal digits of the SHA-256 hash of the target
+	 *         properties and the alphabet
+	 */
+	public static CachePartition forConfig(Properties properties, List<String> alphabet) {
+		String description = describe(properties, alphabet);
+		return new CachePartition(hash(description), description);
+	}
+
+	static String describe(Properties properties, List<String> alphabet) {
+		StringBuilder sb = new StringBuilder();
+		for (String key : FINGERPRINT_PROPERTIES) {
+			String value = properties.getProperty(key);
+			if (value != null && !value.trim().isEmpty())
+				sb.append(key).append('=').append(value.trim()).append(' ');
+		}
+		sb.append("alphabet=").append(String.join(",", alphabet));
+		return sb.toString();
+	}
+
+	private static String hash(String description) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			byte[] digest = md.digest(description.getBytes(StandardCharsets.UTF_8));
+			return Utils.bytesToHex(digest).substring(0, 16);
+		} catch (Exception e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+
+	/**
+	 * Use this partition for all queries on the given connection.
+	 */
+	public static void register(Connection dbConn, CachePartition partition) {
+		partitions.put(dbConn, partition);
+	}
+
+	/**
+	 * @return Partition registered for the connection, or
+	 *         {@link #UNPARTITIONED}
+	 */
+	public static CachePartition of(Connection dbConn) {
+		CachePartition partition = (dbConn == null) ? null : partitions.get(dbConn);
+		return (partition != null) ? partition : UNPARTITIONED;
+	}
+
+	/**
+	 * @return Name of the partition, null if unpartitioned
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	public String cacheTable() {
+		return (name == null) ? "CACHE" : "CACHE_" + name;
+	}
+
+	public String disabledTable() {
+		return (name == null) ? "DISABLED" : "DISABLED_" + name;
+	}
+
+	/**
+	 * Create the cache table and its index if they do not exist yet and describe
+	 * the partition in the PARTITIONS table.
+	 */
+	public void create(Connection dbConn) throws SQLException {
+		String table = cacheTable();
+		Statement stmt = dbConn.createStatement();
+		try {
+			stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + table + "(ID INTEGER PRIMARY KEY, PREFIX_ID TEXT NOT NULL,"
+					+ "RESPONSE	TEXT	NOT NULL,  COUNT INT DEFAULT 0, IS_OPTIMISED INT DEFAULT 0, CONSTRAINT xyz UNIQUE (PREFIX_ID, RESPONSE))");
+			// Lookups return the most common response for a prefix
+			stmt.executeUpdate("CREATE INDEX IF NOT EXISTS " + table + "_LOOKUP ON " + table + " (PREFIX_ID, COUNT DESC)");
+			stmt.executeUpdate("CREATE TABLE IF NOT EXISTS PARTITIONS (NAME TEXT PRIMARY KEY, DESCRIPTION TEXT NOT NULL)");
+		} finally {
+			stmt.close();
+		}
+
+		PreparedStatement insert = dbConn
+				.prepareStatement("INSERT OR IGNORE INTO PARTITIONS (NAME, DESCRIPTION) VALUES (?, ?)");
+		try {
+			insert.setString(1, (name == null) ? "" : name);
+			insert.setString(2, description);
+			insert.executeUpdate();
+		} finally {
+			insert.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return (name == null) ? description : name + " (" + description + ")";
+	}
+}
@@ -0,0 +1,614 @@
+/*
+ *  Copyright (c) 2016 Joeri de Ruiter
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package nl.cypherpunk.statelearner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Level;
+
+import de.learnlib.logging.LearnLogger;
+
+/**
+ * Lets several learners share one cache database. The learner running the
+ * service owns the database and executes the statements of the other learners,
+ * which connect to it over a socket on the loopback interface. All statements
+ * are executed one at a time on the connection of the service, so observations
+ * of different learners are counted in the same transaction order as those of a
+ * single learner.
+ *
+ * Clients get a {@link Connection} that supports the subset of JDBC used on the
+ * cache: plain and prepared statements with string and integer parameters,
+ * executed immediately with auto-commit. Query results are sent back in full
+ * before the statement returns.
+ *
+ * Clients first have to send the token that the service writes to its token
+ * file, which only the user running the service can read. The service only
+ * executes the kinds of statements issued by the cache code, so a client can
+ * not attach other databases or change the settings of the connection.
+ */
+public class CacheService implements Runnable {
+	public static final String NONE = "none";
+	public static final String SERVE = "serve";
+	public static final String CONNECT = "connect";
+
+	static final byte QUERY = 1;
+	static final byte UPDATE = 2;
+	static final byte EXECUTE = 3;
+
+	static final byte OK = 0;
+	static final byte ERROR = 1;
+
+	static final byte NULL = 0;
+	static final byte STRING = 1;
+	static final byte LONG = 2;
+
+	static final int TOKEN_LENGTH = 32;
+
+	private final Connection dbConn;
+	private final ServerSocket server;
+	private final Path tokenFile;
+	private final String token;
+	private final LearnLogger log;
+
+	public CacheService(Connection dbConn, int port, Path tokenFile) throws IOException {
+		this.dbConn = dbConn;
+		this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		this.tokenFile = tokenFile;
+		this.token = createToken();
+		this.log = LearnLogger.getLogger(Learner.class.getSimpleName());
+		try {
+			writeToken(tokenFile, token);
+		} catch (IOException e) {
+			server.close();
+			throw e;
+		}
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Accept clients in a background thread.
+	 */
+	public void start() {
+		Thread t = new Thread(this, "CacheService");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Accept clients until the service is closed.
+	 */
+	@Override
+	public void run() {
+		log.log(Level.INFO, "Cache service listening on port " + getPort());
+		while (!server.isClosed()) {
+			try {
+				final Socket socket = server.accept();
+				Thread t = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						serve(socket);
+					}
+				}, "CacheService-" + socket.getPort());
+				t.setDaemon(true);
+				t.start();
+			} catch (IOException e) {
+				if (!server.isClosed())
+					log.log(Level.WARNING, "Cache service failed to accept client: " + e.getMessage());
+			}
+		}
+	}
+
+	public void close() {
+		try {
+			server.close();
+			Files.deleteIfExists(tokenFile);
+		} catch (IOException e) {
+		}
+	}
+
+	static String createToken() {
+		byte[] bytes = new byte[TOKEN_LENGTH];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	/*
+	 * Replace the token file by a new one that only the current user can read,
+	 * where the file system supports it
+	 */
+	static void writeToken(Path file, String token) throws IOException {
+		Files.deleteIfExists(file);
+		try {
+			Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} catch (UnsupportedOperationException e) {
+			Files.createFile(file);
+		} catch (FileAlreadyExistsException e) {
+			throw new IOException("Token file " + file + " was created by another process", e);
+		}
+		Files.write(file, token.getBytes(StandardCharsets.UTF_8));
+	}
+
+	static String readToken(Path file) throws IOException {
+		return new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+	}
+
+	/*
+	 * Only the statements issued by the cache code are executed: queries and
+	 * changes of rows, and creating the tables and indices of a partition. The
+	 * SQLite driver only prepares the first statement of the SQL, so nothing can
+	 * be appended to an allowed statement.
+	 */
+	static boolean isAllowed(String sql) {
+		if (sql == null)
+			return false;
+		String[] words = sql.trim().toUpperCase(Locale.ROOT).split("\\s+", 3);
+		switch (words[0]) {
+		case "SELECT":
+		case "INSERT":
+		case "UPDATE":
+		case "DELETE":
+			return true;
+		case "CREATE":
+			return words.length > 1 && (words[1].equals("TABLE") || words[1].equals("INDEX"));
+		default:
+			return false;
+		}
+	}
+
+	private void serve(Socket socket) {
+		log.log(Level.INFO, "Cache client connected from port " + socket.getPort());
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			String clientToken = readString(in, TOKEN_LENGTH * 2);
+			if (clientToken == null || !MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+					clientToken.getBytes(StandardCharsets.UTF_8))) {
+				log.log(Level.WARNING, "Cache client on port " + socket.getPort() + " sent a wrong token");
+				out.writeByte(ERROR);
+				writeString(out, "Wrong cache service token");
+				out.flush();
+				return;
+			}
+			out.writeByte(OK);
+			out.flush();
+
+			while (true) {
+				byte kind;
+				try {
+					kind = in.readByte();
+				} catch (EOFException e) {
+					break;
+				}
+				String sql = readString(in);
+				List<Object> parameters = readParameters(in);
+				try {
+					synchronized (dbConn) {
+						execute(kind, sql, parameters, out);
+					}
+				} catch (SQLException e) {
+					out.writeByte(ERROR);
+					writeString(out, e.getMessage());
+				}
+				out.flush();
+			}
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Cache client on port " + socket.getPort() + " failed: " + e.getMessage());
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+		log.log(Level.INFO, "Cache client on port " + socket.getPort() + " disconnected");
+	}
+
+	private void execute(byte kind, String sql, List<Object> parameters, DataOutputStream out)
+			throws SQLException, IOException {
+		if (!isAllowed(sql))
+			throw new SQLException("Statement not allowed by the cache service: " + sql);
+		PreparedStatement stmt = dbConn.prepareStatement(sql);
+		try {
+			for (int i = 0; i < parameters.size(); i++) {
+				stmt.setObject(i + 1, parameters.get(i));
+			}
+
+			if (kind == QUERY) {
+				ResultSet rs = stmt.executeQuery();
+				try {
+					ResultSetMetaData meta = rs.getMetaData();
+					int columns = meta.getColumnCount();
+					// The labels are gone once all rows have been read
+					String[] labels = new String[columns];
+					for (int i = 0; i < columns; i++) {
+						labels[i] = meta.getColumnLabel(i + 1);
+					}
+					// Read all rows first, so an error is reported before anything is sent
+					List<String[]> rows = new ArrayList<>();
+					while (rs.next()) {
+						String[] row = new String[columns];
+						for (int i = 0; i < columns; i++) {
+							row[i] = rs.getString(i + 1);
+						}
+						rows.add(row);
+					}
+
+					out.writeByte(OK);
+					out.writeInt(columns);
+					for (String label : labels) {
+						writeString(out, label);
+					}
+					out.writeInt(rows.size());
+					for (String[] row : rows) {
+						for (String value : row) {
+							writeString(out, value);
+						}
+					}
+				} finally {
+					rs.close();
+				}
+			} else if (kind == UPDATE) {
+				int count = Utils.executeUpdate(stmt);
+				out.writeByte(OK);
+				out.writeInt(count);
+			} else {
+				boolean results = stmt.execute();
+				out.writeByte(OK);
+				out.writeBoolean(results);
+			}
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Connect to the service of another learner on this host, with the token
+	 * from the token file of the service.
+	 */
+	public static Connection connect(int port, Path tokenFile) throws IOException {
+		String token = readToken(tokenFile);
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		Client client;
+		try {
+			client = new Client(socket);
+			client.authenticate(token);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, client);
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		return readString(in, Integer.MAX_VALUE);
+	}
+
+	static String readString(DataInputStream in, int maxLength) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+		if (length > maxLength)
+			throw new IOException("String of " + length + " bytes is too long");
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static List<Object> readParameters(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		List<Object> parameters = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			byte type = in.readByte();
+			if (type == STRING)
+				parameters.add(readString(in));
+			else if (type == LONG)
+				parameters.add(in.readLong());
+			else
+				parameters.add(null);
+		}
+		return parameters;
+	}
+
+	static void writeParameters(DataOutputStream out, Object[] parameters) throws IOException {
+		out.writeInt(parameters.length);
+		for (Object parameter : parameters) {
+			if (parameter == null) {
+				out.writeByte(NULL);
+			} else if (parameter instanceof Number) {
+				out.writeByte(LONG);
+				out.writeLong(((Number) parameter).longValue());
+			} else {
+				out.writeByte(STRING);
+				writeString(out, parameter.toString());
+			}
+		}
+	}
+
+	/*
+	 * Connection to the service. Statements of all threads share the socket and
+	 * are sent one at a time.
+	 */
+	static class Client implements InvocationHandler {
+		private final Socket socket;
+		private final DataInputStream in;
+		private final DataOutputStream out;
+
+		Client(Socket socket) throws IOException {
+			this.socket = socket;
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+
+		void authenticate(String token) throws IOException {
+			writeString(out, token);
+			out.flush();
+			if (in.readByte() == ERROR)
+				throw new IOException(readString(in));
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			switch (method.getName()) {
+			case "createStatement":
+				if (args == null)
+					return statement(null);
+				break;
+			case "prepareStatement":
+				if (args.length == 1)
+					return statement((String) args[0]);
+				break;
+			case "getAutoCommit":
+				return true;
+			case "setAutoCommit":
+				if ((Boolean) args[0])
+					return null;
+				break;
+			case "isClosed":
+				return socket.isClosed();
+			case "close":
+				socket.close();
+				return null;
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "equals":
+				return proxy == args[0];
+			case "toString":
+				return "CacheService connection to port " + socket.getPort();
+			}
+			throw new SQLFeatureNotSupportedException(method.getName() + " is not supported by the cache service");
+		}
+
+		private Object statement(String sql) {
+			Class<?> type = (sql == null) ? Statement.class : PreparedStatement.class;
+			return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new ClientStatement(this, sql));
+		}
+
+		synchronized Object send(byte kind, String sql, Object[] parameters) throws SQLException {
+			try {
+				out.writeByte(kind);
+				writeString(out, sql);
+				writeParameters(out, parameters);
+				out.flush();
+
+				if (in.readByte() == ERROR)
+					throw new SQLException(readString(in));
+				if (kind == QUERY) {
+					String[] columns = new String[in.readInt()];
+					for (int i = 0; i < columns.length; i++) {
+						columns[i] = readString(in);
+					}
+					int count = in.readInt();
+					List<String[]> rows = new ArrayList<>(count);
+					for (int r = 0; r < count; r++) {
+						String[] row = new String[columns.length];
+						for (int i = 0; i < row.length; i++) {
+							row[i] = readString(in);
+						}
+						rows.add(row);
+					}
+					return Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class },
+							new ClientResultSet(columns, rows));
+				} else if (kind == UPDATE) {
+					return in.readInt();
+				} else {
+					return in.readBoolean();
+				}
+			} catch (IOException e) {
+				throw new SQLException("Connection to the cache service failed", e);
+			}
+		}
+	}
+
+	/*
+	 * Statement or prepared statement, with the parameters set so far.
+	 */
+	static class ClientStatement implements InvocationHandler {
+		private final Client client;
+		private final String sql;
+		private final List<Object> parameters = new ArrayList<>();
+		private boolean closed = false;
+
+		ClientStatement(Client client, String sql) {
+			this.client = client;
+			this.sql = sql;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			switch (name) {
+			case "executeQuery":
+				return client.send(QUERY, sql(args), parameters.toArray());
+			case "executeUpdate":
+				return client.send(UPDATE, sql(args), parameters.toArray());
+			case "execute":
+				return client.send(EXECUTE, sql(args), parameters.toArray());
+			case "setString":
+			case "setInt":
+			case "setLong":
+			case "setObject":
+				if (args.length == 2) {
+					int index = (Integer) args[0];
+					while (parameters.size() < index) {
+						parameters.add(null);
+					}
+					parameters.set(index - 1, args[1]);
+					return null;
+				}
+				break;
+			case "clearParameters":
+				parameters.clear();
+				return null;
+			case "close":
+				closed = true;
+				return null;
+			case "isClosed":
+				return closed;
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "equals":
+				return proxy == args[0];
+			case "toString":
+				return (sql == null) ? "CacheService statement" : sql;
+			}
+			throw new SQLFeatureNotSupportedException(name + " is not supported by the cache service");
+		}
+
+		private String sql(Object[] args) throws SQLException {
+			if (sql != null && args == null)
+				return sql;
+			if (sql == null && args != null && args.length == 1)
+				return (String) args[0];
+			throw new SQLFeatureNotSupportedException("Statement not supported by the cache service");
+		}
+	}
+
+	/*
+	 * Result of a query, with all values as strings.
+	 */
+	static class ClientResultSet implements InvocationHandler {
+		private final String[] columns;
+		private final List<String[]> rows;
+		private int row = -1;
+		private boolean wasNull = false;
+		private boolean closed = false;
+
+		ClientResultSet(String[] columns, List<String[]> rows) {
+			this.columns = columns;
+			this.rows = rows;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			switch (name) {
+			case "next":
+				row++;
+				return row < rows.size();
+			case "getString":
+				return value(args[0]);
+			case "getInt": {
+				String value = value(args[0]);
+				return (value == null) ? 0 : Integer.parseInt(value);
+			}
+			case "getLong": {
+				String value = value(args[0]);
+				return (value == null) ? 0L : Long.parseLong(value);
+			}
+			case "wasNull":
+				return wasNull;
+			case "close":
+				closed = true;
+				return null;
+			case "isClosed":
+				return closed;
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "equals":
+				return proxy == args[0];
+			case "toString":
+				return "CacheService result set";
+			}
+			throw new SQLFeatureNotSupportedException(name + " is not supported by the cache service");
+		}
+
+		private String value(Object column) throws SQLException {
+			if (row < 0 || row >= rows.size())
+				throw new SQLException("No current row");
+			int index = -1;
+			if (column instanceof Integer) {
+				index = (Integer) column - 1;
+			} else {
+				for (int i = 0; i < columns.length; i++) {
+					if (columns[i].equalsIgnoreCase((String) column)) {
+						index = i;
+						break;
+					}
+				}
+			}
+			if (index < 0 || index >= columns.length)
+				throw new SQLException("Unknown column " + column);
+			String value = rows.get(row)[index];
+			wasNull = (value == null);
+			return value;
+		}
+	}
+}
@@ -0,0 +1,546 @@
+/*
+ *  Copyright (c) 2016 Joeri de Ruiter
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package nl.cypherpunk.statelearner;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Maintenance of the cache database, run with
+ * <code>java -jar stateLearner.jar cache &lt;command&gt; [options]</code>.
+ *
+ * <ul>
+ * <li>stats: rows, observations and nondeterministic prefixes per query
+ * length, and the most observed prefixes</li>
+ * <li>prune: remove responses observed less than a share of the observations
+ * of their prefix, and optionally the optimised rows</li>
+ * <li>reindex: create missing indexes, rebuild them and update the statistics
+ * of the query planner</li>
+ * <li>vacuum: checkpoint the write ahead log and rebuild the database file</li>
+ * <li>export, import: write the partitions to a gzipped dump, or merge a dump
+ * into the database, adding up the counts</li>
+ * </ul>
+ *
+ * Commands apply to every partition in the database, unless one is selected
+ * with --partition.
+ */
+public class CacheTool {
+	static final String USAGE = "Usage: cache <stats|prune|reindex|vacuum|export|import> [options]\n"
+			+ "  --db <file>          Cache database (default: cache.db)\n"
+			+ "  --partition <name>   Only this partition, none for the unpartitioned tables\n"
+			+ "  --top <n>            stats: number of most observed prefixes to list (default: 10)\n"
+			+ "  --threshold <share>  prune: remove responses below this share of the observations (default: 0.1)\n"
+			+ "  --optimised          prune: also remove the optimised rows\n"
+			+ "  --file <file>        export, import: dump file";
+
+	// Lines of a dump: header, partition, cache row and disabled prefix
+	static final String DUMP_HEADER = "# stateLearner cache dump 1";
+	static final String DUMP_PARTITION = "P";
+	static final String DUMP_CACHE = "C";
+	static final String DUMP_DISABLED = "D";
+
+	private final Connection dbConn;
+	private final String partition;
+
+	public CacheTool(Connection dbConn, String partition) {
+		this.dbConn = dbConn;
+		this.partition = partition;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			System.err.println(USAGE);
+			System.exit(-1);
+		}
+
+		String command = args[0];
+		Map<String, String> options = new LinkedHashMap<>();
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("--optimised")) {
+				options.put(args[i], "true");
+			} else if (args[i].startsWith("--") && i + 1 < args.length) {
+				options.put(args[i], args[++i]);
+			} else {
+				System.err.println("Invalid option " + args[i] + "\n" + USAGE);
+				System.exit(-1);
+			}
+		}
+
+		String db = options.containsKey("--db") ? options.get("--db") : "cache.db";
+		if (!command.equals("import") && !new File(db).exists()) {
+			System.err.println("Cache database " + db + " not found");
+			System.exit(-1);
+		}
+
+		Class.forName("org.sqlite.JDBC");
+		Connection conn = DriverManager.getConnection("jdbc:sqlite:" + db);
+		try {
+			// Wait for learners that are writing to the database
+			Statement stmt = conn.createStatement();
+			stmt.execute("PRAGMA busy_timeout = 10000");
+			stmt.close();
+
+			CacheTool tool = new CacheTool(conn, options.get("--partition"));
+			switch (command) {
+			case "stats":
+				tool.stats(options.containsKey("--top") ? Integer.parseInt(options.get("--top")) : 10);
+				break;
+			case "prune":
+				tool.prune(options.containsKey("--threshold") ? Double.parseDouble(options.get("--threshold")) : 0.1,
+						options.containsKey("--optimised"));
+				break;
+			case "reindex":
+				tool.reindex();
+				break;
+			case "vacuum":
+				tool.vacuum(db);
+				break;
+			case "export":
+			case "import":
+				if (!options.containsKey("--file")) {
+					System.err.println(command + " needs --file\n" + USAGE);
+					System.exit(-1);
+				}
+				if (command.equals("export"))
+					tool.exportDump(options.get("--file"));
+				else
+					tool.importDump(options.get("--file"));
+				break;
+			default:
+				System.err.println("Unknown command " + command + "\n" + USAGE);
+				System.exit(-1);
+			}
+		} finally {
+			conn.close();
+		}
+	}
+
+	/**
+	 * @return Partitions with a cache table in the database, or only the selected
+	 *         one
+	 */
+	List<CachePartition> partitions() throws SQLException {
+		Map<String, String> descriptions = new LinkedHashMap<>();
+		List<String> tables = new ArrayList<>();
+		Statement stmt = dbConn.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery("SELECT name FROM sqlite_master WHERE type = 'table' ORDER BY name");
+			while (rs.next()) {
+				tables.add(rs.getString("name"));
+			}
+			rs.close();
+			if (tables.contains("PARTITIONS")) {
+				rs = stmt.executeQuery("SELECT NAME, DESCRIPTION FROM PARTITIONS");
+				while (rs.next()) {
+					descriptions.put(rs.getString("NAME"), rs.getString("DESCRIPTION"));
+				}
+				rs.close();
+			}
+		} finally {
+			stmt.close();
+		}
+
+		List<CachePartition> partitions = new ArrayList<>();
+		for (String table : tables) {
+			CachePartition p;
+			if (table.equals("CACHE"))
+				p = CachePartition.UNPARTITIONED;
+			else if (table.startsWith("CACHE_"))
+				p = partition(table.substring("CACHE_".length()), descriptions);
+			else
+				continue;
+
+			if (partition == null || partition.equals(name(p)))
+				partitions.add(p);
+		}
+		return partitions;
+	}
+
+	private static CachePartition partition(String name, Map<String, String> descriptions) {
+		String description = descriptions.get(name);
+		return new CachePartition(name, description == null ? "" : description);
+	}
+
+	private static String name(CachePartition p) {
+		return p.getName() == null ? LearningConfig.PARTITION_NONE : p.getName();
+	}
+
+	/**
+	 * Print per query length the number of rows, prefixes and prefixes with more
+	 * than one observed response, followed by the prefixes observed most often.
+	 */
+	public void stats(int top) throws SQLException {
+		for (CachePartition p : partitions()) {
+			// Per length: rows, optimised rows, prefixes, nondeterministic prefixes
+			Map<Integer, long[]> lengths = new TreeMap<>();
+			final Map<String, long[]> prefixes = new LinkedHashMap<>();
+			long observations = 0;
+
+			Statement stmt = dbConn.createStatement();
+			try {
+				ResultSet rs = stmt.executeQuery(
+						"SELECT PREFIX_ID, COUNT, IS_OPTIMISED FROM " + p.cacheTable() + " ORDER BY PREFIX_ID");
+				while (rs.next()) {
+					String prefix = rs.getString("PREFIX_ID").trim();
+					int symbols = prefix.split("\\s+").length;
+					long[] length = lengths.get(symbols);
+					if (length == null) {
+						length = new long[4];
+						lengths.put(symbols, length);
+					}
+					length[0]++;
+					if (rs.getInt("IS_OPTIMISED") != 0) {
+						length[1]++;
+						continue;
+					}
+
+					// Per prefix: responses, observations, observations of the top response
+					long[] counts = prefixes.get(prefix);
+					if (counts == null) {
+						counts = new long[3];
+						prefixes.put(prefix, counts);
+						length[2]++;
+					} else if (counts[0] == 1) {
+						length[3]++;
+					}
+					long count = rs.getLong("COUNT");
+					counts[0]++;
+					counts[1] += count;
+					counts[2] = Math.max(counts[2], count);
+					observations += count;
+				}
+				rs.close();
+			} finally {
+				stmt.close();
+			}
+
+			System.out.println("Partition " + p);
+			System.out.println("  prefixes: " + prefixes.size() + ", observations: " + observations
+					+ ", disabled prefixes: " + countRows(p.disabledTable()));
+			System.out.println(String.format("  %6s %10s %10s %10s %10s %8s", "length", "rows", "optimised",
+					"prefixes", "nondeterm", "ratio"));
+			for (Map.Entry<Integer, long[]> e : lengths.entrySet()) {
+				long[] l = e.getValue();
+				System.out.println(String.format("  %6d %10d %10d %10d %10d %8.4f", e.getKey(), l[0], l[1], l[2], l[3],
+						l[2] == 0 ? 0.0 : (double) l[3] / l[2]));
+			}
+
+			List<String> hot = new ArrayList<>(prefixes.keySet());
+			Collections.sort(hot, new Comparator<String>() {
+				@Override
+				public int compare(String a, String b) {
+					return Long.compare(prefixes.get(b)[1], prefixes.get(a)[1]);
+				}
+			});
+			System.out.println("  most observed prefixes:");
+			for (String prefix : hot.subList(0, Math.min(top, hot.size()))) {
+				long[] counts = prefixes.get(prefix);
+				System.out.println(String.format("  %10d %3d responses, top %5.1f%%  %s", counts[1], counts[0],
+						100.0 * counts[2] / Math.max(1, counts[1]), prefix));
+			}
+		}
+	}
+
+	private long countRows(String table) throws SQLException {
+		Statement stmt = dbConn.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = '"
+					+ table + "'");
+			boolean exists = rs.next() && rs.getInt(1) > 0;
+			rs.close();
+			if (!exists)
+				return 0;
+			rs = stmt.executeQuery("SELECT COUNT(*) FROM " + table);
+			long count = rs.next() ? rs.getLong(1) : 0;
+			rs.close();
+			return count;
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Remove the responses to a prefix observed less than the given share of all
+	 * observations of the prefix, together with the longer queries extending the
+	 * prefix that gave the same response to it. The most common response of a
+	 * prefix is always kept.
+	 */
+	public void prune(double threshold, boolean optimised) throws SQLException {
+		boolean autoCommit = dbConn.getAutoCommit();
+		dbConn.setAutoCommit(false);
+		try {
+			for (CachePartition p : partitions()) {
+				String table = p.cacheTable();
+				List<String[]> minority = new ArrayList<>();
+				PreparedStatement select = dbConn.prepareStatement("SELECT c.PREFIX_ID, c.RESPONSE FROM " + table
+						+ " c JOIN (SELECT PREFIX_ID, SUM(COUNT) AS TOTAL, MAX(COUNT) AS TOP FROM " + table
+						+ " WHERE IS_OPTIMISED = 0 GROUP BY PREFIX_ID) s ON c.PREFIX_ID = s.PREFIX_ID"
+						+ " WHERE c.IS_OPTIMISED = 0 AND c.COUNT < s.TOP AND c.COUNT < ? * s.TOTAL");
+				try {
+					select.setDouble(1, threshold);
+					ResultSet rs = select.executeQuery();
+					while (rs.next()) {
+						minority.add(new String[] { rs.getString(1), rs.getString(2) });
+					}
+					rs.close();
+				} finally {
+					select.close();
+				}
+
+				// Extensions start with the prefix and its response, matched with LIKE
+				// like Utils.correctDBcache does, up to the next symbol
+				int removed = 0;
+				PreparedStatement delete = dbConn.prepareStatement("DELETE FROM " + table
+						+ " WHERE (PREFIX_ID = ? AND RESPONSE = ?)"
+						+ " OR (PREFIX_ID LIKE ? ESCAPE '\\' AND RESPONSE LIKE ? ESCAPE '\\')");
+				try {
+					for (String[] row : minority) {
+						delete.setString(1, row[0]);
+						delete.setString(2, row[1]);
+						delete.setString(3, escapeLike(row[0]) + " %");
+						delete.setString(4, escapeLike(row[1]) + " %");
+						removed += Utils.executeUpdate(delete);
+					}
+				} finally {
+					delete.close();
+				}
+
+				int removedOptimised = 0;
+				if (optimised) {
+					// The disabled prefixes they were derived from are kept in the DISABLED
+					// table
+					Statement stmt = dbConn.createStatement();
+					try {
+						removedOptimised = Utils.executeUpdate(stmt, "DELETE FROM " + table + " WHERE IS_OPTIMISED = 1");
+					} finally {
+						stmt.close();
+					}
+				}
+				dbConn.commit();
+				System.out.println("Partition " + name(p) + ": removed " + minority.size() + " minority responses ("
+						+ removed + " rows with their extensions)"
+						+ (optimised ? " and " + removedOptimised + " optimised rows" : ""));
+			}
+		} catch (SQLException | RuntimeException e) {
+			dbConn.rollback();
+			throw e;
+		} finally {
+			dbConn.setAutoCommit(autoCommit);
+		}
+	}
+
+	private static String escapeLike(String value) {
+		return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+	}
+
+	/**
+	 * Create the lookup index where it is missing, rebuild all indexes and update
+	 * the statistics used by the query planner.
+	 */
+	public void reindex() throws SQLException {
+		for (CachePartition p : partitions()) {
+			p.create(dbConn);
+		}
+		Statement stmt = dbConn.createStatement();
+		try {
+			stmt.executeUpdate("REINDEX");
+			stmt.executeUpdate("ANALYZE");
+		} finally {
+			stmt.close();
+		}
+		System.out.println("Rebuilt indexes");
+	}
+
+	/**
+	 * Move the write ahead log into the database and rebuild the file without
+	 * unused pages. Needs exclusive access, so no learner should be using the
+	 * database.
+	 */
+	public void vacuum(String db) throws SQLException {
+		long before = size(db);
+		Statement stmt = dbConn.createStatement();
+		try {
+			stmt.execute("PRAGMA wal_checkpoint(TRUNCATE)");
+			stmt.executeUpdate("VACUUM");
+		} finally {
+			stmt.close();
+		}
+		System.out.println("Database " + db + ": " + before + " bytes before, " + size(db) + " bytes after");
+	}
+
+	private static long size(String db) {
+		return new File(db).length() + new File(db + "-wal").length();
+	}
+
+	/**
+	 * Write the cache rows and disabled prefixes of the partitions to a gzipped
+	 * dump, one tab separated line per row.
+	 */
+	public void exportDump(String file) throws SQLException, IOException {
+		Writer out = new BufferedWriter(
+				new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file)), StandardCharsets.UTF_8));
+		try {
+			out.write(DUMP_HEADER + "\n");
+			for (CachePartition p : partitions()) {
+				long rows = 0;
+				out.write(line(DUMP_PARTITION, name(p), p.getDescription()));
+
+				Statement stmt = dbConn.createStatement();
+				try {
+					ResultSet rs = stmt.executeQuery("SELECT PREFIX_ID, RESPONSE, COUNT, IS_OPTIMISED FROM "
+							+ p.cacheTable() + " ORDER BY ID");
+					while (rs.next()) {
+						out.write(line(DUMP_CACHE, rs.getString("PREFIX_ID"), rs.getString("RESPONSE"),
+								rs.getString("COUNT"), rs.getString("IS_OPTIMISED")));
+						rows++;
+					}
+					rs.close();
+
+					if (countRows(p.disabledTable()) > 0) {
+						rs = stmt.executeQuery("SELECT PREFIX_ID, RESPONSE, INPUTS FROM " + p.disabledTable());
+						while (rs.next()) {
+							out.write(line(DUMP_DISABLED, rs.getString("PREFIX_ID"), rs.getString("RESPONSE"),
+									rs.getString("INPUTS")));
+							rows++;
+						}
+						rs.close();
+					}
+				} finally {
+					stmt.close();
+				}
+				System.out.println("Partition " + name(p) + ": exported " + rows + " rows");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Merge a dump into the database. Counts of rows that already exist are added
+	 * up, missing partitions are created.
+	 */
+	public void importDump(String file) throws SQLException, IOException {
+		BufferedReader in = new BufferedReader(
+				new InputStreamReader(new GZIPInputStream(new FileInputStream(file)), StandardCharsets.UTF_8));
+		boolean autoCommit = dbConn.getAutoCommit();
+		dbConn.setAutoCommit(false);
+		try {
+			String line = in.readLine();
+			if (!DUMP_HEADER.equals(line))
+				throw new IOException(file + " is not a cache dump");
+
+			CachePartition current = null;
+			DisabledPrefixes disabled = null;
+			PreparedStatement insert = null;
+			PreparedStatement update = null;
+			long rows = 0;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				if (fields[0].equals(DUMP_PARTITION)) {
+					close(insert, update);
+					if (current != null)
+						System.out.println("Partition " + name(current) + ": imported " + rows + " rows");
+					rows = 0;
+
+					current = fields[1].equals(LearningConfig.PARTITION_NONE) ? CachePartition.UNPARTITIONED
+							: new CachePartition(fields[1], fields[2]);
+					if (partition != null && !partition.equals(fields[1])) {
+						current = null;
+						continue;
+					}
+					current.create(dbConn);
+					CachePartition.register(dbConn, current);
+					disabled = null;
+					insert = dbConn.prepareStatement("INSERT OR IGNORE INTO " + current.cacheTable()
+							+ " (PREFIX_ID, RESPONSE, COUNT, IS_OPTIMISED) VALUES (?, ?, ?, ?)");
+					update = dbConn.prepareStatement(
+							"UPDATE " + current.cacheTable() + " SET COUNT = COUNT + ? WHERE PREFIX_ID = ? AND RESPONSE = ?");
+				} else if (current == null) {
+					continue;
+				} else if (fields[0].equals(DUMP_CACHE)) {
+					insert.setString(1, fields[1]);
+					insert.setString(2, fields[2]);
+					insert.setLong(3, Long.parseLong(fields[3]));
+					insert.setInt(4, Integer.parseInt(fields[4]));
+					if (Utils.executeUpdate(insert) == 0) {
+						update.setLong(1, Long.parseLong(fields[3]));
+						update.setString(2, fields[1]);
+						update.setString(3, fields[2]);
+						Utils.executeUpdate(update);
+					}
+					rows++;
+				} else if (fields[0].equals(DUMP_DISABLED)) {
+					// Created after the cache rows, so facts already in them are derived as well
+					if (disabled == null)
+						disabled = new DisabledPrefixes(dbConn);
+					disabled.add(fields[1], fields[2], fields[3].equals(DisabledPrefixes.ALL_INPUTS) ? null
+							: Arrays.asList(fields[3].split(" ")));
+					rows++;
+				}
+			}
+			close(insert, update);
+			if (current != null)
+				System.out.println("Partition " + name(current) + ": imported " + rows + " rows");
+			dbConn.commit();
+		} catch (SQLException | IOException | RuntimeException e) {
+			dbConn.rollback();
+			throw e;
+		} finally {
+			dbConn.setAutoCommit(autoCommit);
+			in.close();
+		}
+	}
+
+	private static void close(Statement... statements) throws SQLException {
+		for (Statement stmt : statements) {
+			if (stmt != null)
+				stmt.close();
+		}
+	}
+
+	private static String line(String type, String... fields) {
+		StringBuilder sb = new StringBuilder(type);
+		for (String field : fields) {
+			sb.append('\t').append(field == null ? "" : field);
+		}
+		return sb.append('\n').toString();
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ *  Copyright (c) 2016 Joeri de Ruiter
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package nl.cypherpunk.statelearner;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import net.automatalib.words.Word;
+import net.automatalib.words.WordBuilder;
+
+/**
+ * State of a learning run that is needed to resume it: the counterexamples
+ * found so far, the round counter, whether the timeout has been escalated and
+ * profiling information. The hypothesis
+ * itself is not restored from the checkpoint, but rebuilt by replaying the
+ * counterexamples against the (cached) membership oracle. The DOT file of the
+ * last hypothesis and its size are recorded to verify the rebuilt model.
+ *
+ * Words are stored as space separated symbols, the same representation as used
+ * in the query cache.
+ */
+public class Checkpoint {
+	public static final String FILENAME = "checkpoint.properties";
+
+	private final Path file;
+
+	long round = 0;
+	List<Word<String>> counterexamples = new ArrayList<>();
+	long elapsed = 0;
+	String profiler = "";
+	String hypothesis = "";
+	int hypothesisSize = 0;
+	boolean escalated = false;
+
+	public Checkpoint(String output_dir) {
+		this.file = Paths.get(output_dir, FILENAME);
+	}
+
+	public boolean exists() {
+		return Files.exists(file);
+	}
+
+	public boolean isEmpty() {
+		return counterexamples.isEmpty();
+	}
+
+	public void addCounterexample(Word<String> input) {
+		counterexamples.add(input);
+	}
+
+	public List<Word<String>> getCounterexamples() {
+		return counterexamples;
+	}
+
+	public long getRound() {
+		return round;
+	}
+
+	public void load() throws IOException {
+		Properties properties = new Properties();
+		InputStream input = new FileInputStream(file.toFile());
+		try {
+			properties.load(input);
+		} finally {
+			input.close();
+		}
+
+		round = Long.parseLong(properties.getProperty("round", "0"));
+		elapsed = Long.parseLong(properties.getProperty("elapsed", "0"));
+		profiler = properties.getProperty("profiler", "");
+		hypothesis = properties.getProperty("hypothesis", "");
+		hypothesisSize = Integer.parseInt(properties.getProperty("hypothesis_states", "0"));
+		escalated = Boolean.parseBoolean(properties.getProperty("escalated", "false"));
+
+		counterexamples.clear();
+		int count = Integer.parseInt(properties.getProperty("counterexamples", "0"));
+		for (int i = 0; i < count; i++) {
+			counterexamples.add(parseWord(properties.getProperty("counterexample." + i, "")));
+		}
+	}
+
+	/**
+	 * Write the checkpoint to a temporary file first and then move it in place, so
+	 * a crash while writing does not destroy the previous checkpoint.
+	 */
+	public void save() throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("round", Long.toString(round));
+		properties.setProperty("elapsed", Long.toString(elapsed));
+		properties.setProperty("profiler", profiler);
+		properties.setProperty("hypothesis", hypothesis);
+		properties.setProperty("hypothesis_states", Integer.toString(hypothesisSize));
+		properties.setProperty("escalated", Boolean.toString(escalated));
+		properties.setProperty("counterexamples", Integer.toString(counterexamples.size()));
+		for (int i = 0; i < counterexamples.size(); i++) {
+			properties.setProperty("counterexample." + i, wordToString(counterexamples.get(i)));
+		}
+
+		Path tmp = file.resolveSibling(FILENAME + ".tmp");
+		OutputStream output = new FileOutputStream(tmp.toFile());
+		try {
+			properties.store(output, "StateLearner checkpoint");
+		} finally {
+			output.close();
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	static String wordToString(Word<String> word) {
+		StringBuilder sb = new StringBuilder();
+		for (String sym : word) {
+			if (sb.length() > 0)
+				sb.append(' ');
+			sb.append(sym);
+		}
+		return sb.toString();
+	}
+
+	static Word<String> parseWord(String s) {
+		WordBuilder<String> wb = new WordBuilder<>();
+		for (String sym : s.trim().split("\\s+")) {
+			if (!sym.isEmpty())
+				wb.append(sym);
+		}
+		return wb.toWord();
+	}
+}
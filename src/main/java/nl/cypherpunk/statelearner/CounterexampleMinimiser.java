@@ -0,0 +1,134 @@
+/*
+ *  Copyright (c) 2016 Joeri de Ruiter
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package nl.cypherpunk.statelearner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import de.learnlib.api.MembershipOracle;
+import de.learnlib.oracles.DefaultQuery;
+import net.automatalib.automata.transout.MealyMachine;
+import net.automatalib.words.Word;
+
+/**
+ * Shortens counter-examples before they are given to the learning algorithm.
+ *
+ * First the counter-example is cut off after the first output that differs from
+ * the hypothesis. This does not need any queries, as the outputs of a Mealy
+ * machine are prefix closed. Then loops are removed: if the hypothesis is in the
+ * same state after two prefixes of the counter-example, the part in between is
+ * dropped and the shorter word is asked through the membership oracle. It is
+ * kept if the answer still differs from the hypothesis. Longer loops are tried
+ * first. The number of queries spent on removing loops is bounded by the budget.
+ */
+public class CounterexampleMinimiser {
+	private final MembershipOracle<String, Word<String>> oracle;
+	private final int budget;
+	private int queries = 0;
+
+	/**
+	 * @param oracle
+	 *            Membership oracle used to check shortened counter-examples,
+	 *            normally the cached membership oracle
+	 * @param budget
+	 *            Maximum number of queries per counter-example
+	 */
+	public CounterexampleMinimiser(MembershipOracle<String, Word<String>> oracle, int budget) {
+		this.oracle = oracle;
+		this.budget = budget;
+	}
+
+	/**
+	 * @return Number of queries asked while minimising the last counter-example
+	 */
+	public int getQueries() {
+		return queries;
+	}
+
+	public DefaultQuery<String, Word<String>> minimise(MealyMachine<?, String, ?, String> hypothesis,
+			DefaultQuery<String, Word<String>> counterExample) {
+		queries = 0;
+		DefaultQuery<String, Word<String>> ce = truncate(hypothesis, counterExample.getInput(),
+				counterExample.getOutput());
+		if (ce == null)
+			return counterExample;
+
+		DefaultQuery<String, Word<String>> shorter;
+		while (queries < budget && (shorter = removeLoop(hypothesis, ce)) != null) {
+			ce = shorter;
+		}
+		return ce;
+	}
+
+	/*
+	 * Cut the word off after the first output that differs from the hypothesis, or
+	 * return null if there is no difference.
+	 */
+	private DefaultQuery<String, Word<String>> truncate(MealyMachine<?, String, ?, String> hypothesis,
+			Word<String> input, Word<String> output) {
+		Word<String> expected = hypothesis.computeOutput(input);
+		int length = Math.min(expected.length(), output.length());
+		for (int i = 0; i < length; i++) {
+			if (!Objects.equals(expected.getSymbol(i), output.getSymbol(i)))
+				return new DefaultQuery<String, Word<String>>(Word.<String> epsilon(), input.prefix(i + 1),
+						output.prefix(i + 1));
+		}
+		if (expected.length() != output.length())
+			return new DefaultQuery<String, Word<String>>(Word.<String> epsilon(), input, output);
+		return null;
+	}
+
+	/*
+	 * Try the loops in the hypothesis path of the counter-example, longest first.
+	 * Returns the first shortened word that is still a counter-example, or null if
+	 * none is found within the budget.
+	 */
+	private <S> DefaultQuery<String, Word<String>> removeLoop(MealyMachine<S, String, ?, String> hypothesis,
+			DefaultQuery<String, Word<String>> ce) {
+		Word<String> input = ce.getInput();
+		List<S> states = new ArrayList<S>(input.length() + 1);
+		S state = hypothesis.getInitialState();
+		states.add(state);
+		for (String sym : input) {
+			state = hypothesis.getSuccessor(state, sym);
+			if (state == null)
+				return null;
+			states.add(state);
+		}
+
+		for (int loop = input.length() - 1; loop > 0; loop--) {
+			for (int i = 0; i + loop <= input.length() - 1; i++) {
+				if (!states.get(i).equals(states.get(i + loop)))
+					continue;
+				if (queries >= budget)
+					return null;
+
+				Word<String> candidate = input.prefix(i).concat(input.subWord(i + loop));
+				DefaultQuery<String, Word<String>> query = new DefaultQuery<String, Word<String>>(candidate);
+				oracle.processQueries(Collections.singleton(query));
+				queries++;
+
+				DefaultQuery<String, Word<String>> shorter = truncate(hypothesis, candidate, query.getOutput());
+				if (shorter != null)
+					return shorter;
+			}
+		}
+		return null;
+	}
+}
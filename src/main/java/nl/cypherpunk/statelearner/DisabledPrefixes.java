@@ -0,0 +1,361 @@
+/*
+ *  Copyright (c) 2016 Joeri de Ruiter
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package nl.cypherpunk.statelearner;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.automatalib.words.Word;
+import nl.cypherpunk.modifiedcache.QueryFilter;
+
+/**
+ * Prefixes after which inputs are disabled by the learning purpose. Once an
+ * input is disabled, it and every input after it produce
+ * {@link LogOracle#DISABLE_OUTPUT}, so a single fact "after this prefix these
+ * inputs are disabled" answers every query extending the prefix with one of the
+ * inputs.
+ *
+ * The facts are kept in memory, so queries can be answered without going to the
+ * database, and every fact is stored as one row in the DISABLED table of the
+ * cache partition, with the inputs space delimited or {@link #ALL_INPUTS}. When
+ * the table is first created, facts are derived from the disabled responses
+ * already in the CACHE table of the partition.
+ *
+ * As a {@link QueryFilter} it lets the cache oracles answer disabled queries
+ * while grouping them, before they reach the cache or the SUL.
+ */
+public class DisabledPrefixes implements QueryFilter<String, String> {
+	public static final String ALL_INPUTS = "*";
+
+	private static class Fact {
+		final String response;
+		// Disabled inputs, null if all inputs are disabled
+		final Set<String> inputs;
+
+		Fact(String response, Set<String> inputs) {
+			this.response = response;
+			this.inputs = inputs;
+		}
+
+		boolean disables(String input) {
+			return inputs == null || inputs.contains(input);
+		}
+	}
+
+	private final Connection dbConn;
+	private String table;
+	private final Map<String, Fact> facts = new ConcurrentHashMap<>();
+	private PreparedStatement insert;
+
+	public DisabledPrefixes(Connection dbConn) {
+		this.dbConn = dbConn;
+		this.table = CachePartition.of(dbConn).disabledTable();
+		if (dbConn != null)
+			load();
+	}
+
+	private void load() {
+		Statement stmt = null;
+		ResultSet rs = null;
+		try {
+			stmt = dbConn.createStatement();
+			rs = stmt.executeQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND name = '" + table + "'");
+			boolean exists = rs.next();
+			rs.close();
+
+			if (!exists) {
+				stmt.executeUpdate("CREATE TABLE " + table + " (PREFIX_ID TEXT PRIMARY KEY, RESPONSE TEXT NOT NULL, "
+						+ "INPUTS TEXT NOT NULL)");
+				importCache(stmt);
+			}
+
+			rs = stmt.executeQuery("SELECT PREFIX_ID, RESPONSE, INPUTS FROM " + table);
+			while (rs.next()) {
+				String inputs = rs.getString("INPUTS");
+				facts.put(rs.getString("PREFIX_ID"),
+						new Fact(rs.getString("RESPONSE"), ALL_INPUTS.equals(inputs) ? null : split(inputs)));
+			}
+		} catch (Exception e) {
+			System.err.println(e.getClass().getName() + ": " + e.getMessage());
+			e.printStackTrace();
+		} finally {
+			try {
+				if (rs != null)
+					rs.close();
+				if (stmt != null)
+					stmt.close();
+			} catch (Exception e) {
+				System.err.println(e.getClass().getName() + ": " + e.getMessage());
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/*
+	 * Derive facts from cached responses containing a disable output, both
+	 * observed and optimised, as stored before the DISABLED table existed.
+	 */
+	private void importCache(Statement stmt) throws Exception {
+		ResultSet rs = stmt.executeQuery("SELECT PREFIX_ID, RESPONSE FROM " + CachePartition.of(dbConn).cacheTable()
+				+ " WHERE RESPONSE LIKE '%" + LogOracle.DISABLE_OUTPUT
+				+ "%' ORDER BY LENGTH(PREFIX_ID) ASC, COUNT DESC, ID ASC");
+		try {
+			while (rs.next()) {
+				addDisabledResponse(rs.getString("PREFIX_ID").trim().split("\\s+"),
+						rs.getString("RESPONSE").trim().split("\\s+"));
+			}
+		} finally {
+			rs.close();
+		}
+	}
+
+	/**
+	 * Record that after the given prefix the given inputs are disabled.
+	 *
+	 * @param prefix
+	 *            Space delimited prefix
+	 * @param response
+	 *            Space delimited response to the prefix
+	 * @param inputs
+	 *            Disabled inputs, or null if all inputs are disabled
+	 */
+	public synchronized void add(String prefix, String response, Collection<String> inputs) {
+		Fact current = facts.get(prefix);
+		Set<String> merged = null;
+		if (current != null) {
+			if (current.inputs == null)
+				return;
+			if (inputs != null) {
+				if (current.inputs.containsAll(inputs))
+					return;
+				merged = new HashSet<>(current.inputs);
+				merged.addAll(inputs);
+			}
+		} else if (inputs != null) {
+			if (inputs.isEmpty())
+				return;
+			merged = new HashSet<>(inputs);
+		}
+
+		facts.put(prefix, new Fact(response, merged));
+		store(prefix, response, merged);
+	}
+
+	/**
+	 * Record the facts following from a response that contains a disable output:
+	 * the input at the first disable output is disabled after the inputs before
+	 * it.
+	 */
+	public void addDisabledResponse(Word<?> query, Word<?> response) {
+		String[] q = new String[query.length()];
+		String[] r = new String[response.length()];
+		for (int i = 0; i < q.length; i++) {
+			q[i] = String.valueOf(query.getSymbol(i));
+		}
+		for (int i = 0; i < r.length; i++) {
+			r[i] = String.valueOf(response.getSymbol(i));
+		}
+		addDisabledResponse(q, r);
+	}
+
+	private void addDisabledResponse(String[] query, String[] response) {
+		int n = Math.min(query.length, response.length);
+		for (int k = 0; k < n; k++) {
+			if (LogOracle.DISABLE_OUTPUT.equals(response[k])) {
+				Set<String> input = new HashSet<>();
+				input.add(query[k]);
+				add(join(query, k), join(response, k), input);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @param query
+	 *            Space delimited query
+	 * @return The response to the query if it extends a disabled prefix, null
+	 *         otherwise
+	 */
+	public Word<String> lookup(String query) {
+		if (facts.isEmpty())
+			return null;
+		query = query.trim();
+		String[] symbols = query.split("\\s+");
+
+		// Offset of every symbol in the query, so prefixes are substrings
+		int[] offsets = new int[symbols.length];
+		for (int i = 1; i < symbols.length; i++) {
+			offsets[i] = query.indexOf(symbols[i], offsets[i - 1] + symbols[i - 1].length());
+		}
+
+		// Longest disabled prefix first
+		for (int k = symbols.length - 1; k >= 0; k--) {
+			String prefix = query.substring(0, offsets[k]).trim();
+			Fact fact = facts.get(prefix);
+			if (fact != null && fact.disables(symbols[k])) {
+				String[] response = new String[symbols.length];
+				String[] known = fact.response.isEmpty() ? new String[0] : fact.response.split("\\s+");
+				for (int i = 0; i < response.length; i++) {
+					response[i] = (i < known.length && i < k) ? known[i] : LogOracle.DISABLE_OUTPUT;
+				}
+				return Word.fromArray(response, 0, response.length);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Word<String> answer(Word<String> input) {
+		if (input.isEmpty())
+			return null;
+		return lookup(input.toString());
+	}
+
+	/**
+	 * Remove facts that contradict the given response, after it has been found
+	 * to be the correct one in a conflict. Mirrors
+	 * {@link Utils#correctDBcache(String, String, Connection)}.
+	 */
+	public synchronized void invalidate(String inconsistentPrefix, String inconsistentResponse) {
+		if (inconsistentPrefix.startsWith("ε"))
+			inconsistentPrefix = inconsistentPrefix.substring(1).trim();
+
+		Word<String> derived = lookup(inconsistentPrefix);
+		boolean coveredWrongly = derived != null && !derived.toString().equals(inconsistentResponse);
+
+		Iterator<Map.Entry<String, Fact>> it = facts.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Fact> e = it.next();
+			String prefix = e.getKey();
+			boolean remove;
+			if (extendsWord(prefix, inconsistentPrefix))
+				remove = !extendsWord(e.getValue().response, inconsistentResponse);
+			else
+				remove = coveredWrongly && extendsWord(inconsistentPrefix, prefix);
+			if (remove) {
+				it.remove();
+				delete(prefix);
+			}
+		}
+	}
+
+	/**
+	 * Store facts in the DISABLED table of the partition now registered for the
+	 * connection, which is created if it does not exist yet. The facts in memory
+	 * are kept.
+	 */
+	public void usePartition() {
+		if (dbConn == null)
+			return;
+		Statement stmt = null;
+		try {
+			if (insert != null) {
+				insert.close();
+				insert = null;
+			}
+			table = CachePartition.of(dbConn).disabledTable();
+			stmt = dbConn.createStatement();
+			stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + table
+					+ " (PREFIX_ID TEXT PRIMARY KEY, RESPONSE TEXT NOT NULL, INPUTS TEXT NOT NULL)");
+		} catch (Exception e) {
+			System.err.println(e.getClass().getName() + ": " + e.getMessage());
+			e.printStackTrace();
+		} finally {
+			try {
+				if (stmt != null)
+					stmt.close();
+			} catch (Exception e) {
+			}
+		}
+	}
+
+	public int size() {
+		return facts.size();
+	}
+
+	private void store(String prefix, String response, Set<String> inputs) {
+		if (dbConn == null)
+			return;
+		try {
+			if (insert == null)
+				insert = dbConn.prepareStatement(
+						"INSERT OR REPLACE INTO " + table + " (PREFIX_ID, RESPONSE, INPUTS) VALUES (?, ?, ?)");
+			insert.setString(1, prefix);
+			insert.setString(2, response);
+			insert.setString(3, inputs == null ? ALL_INPUTS : String.join(" ", inputs));
+			Utils.executeUpdate(insert);
+		} catch (Exception e) {
+			System.err.println(e.getClass().getName() + ": " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	private void delete(String prefix) {
+		if (dbConn == null)
+			return;
+		PreparedStatement stmt = null;
+		try {
+			stmt = dbConn.prepareStatement("DELETE FROM " + table + " WHERE PREFIX_ID = ?");
+			stmt.setString(1, prefix);
+			Utils.executeUpdate(stmt);
+		} catch (Exception e) {
+			System.err.println(e.getClass().getName() + ": " + e.getMessage());
+			e.printStackTrace();
+		} finally {
+			try {
+				if (stmt != null)
+					stmt.close();
+			} catch (Exception e) {
+			}
+		}
+	}
+
+	private static Set<String> split(String inputs) {
+		Set<String> set = new HashSet<>();
+		for (String s : inputs.trim().split("\\s+")) {
+			if (!s.isEmpty())
+				set.add(s);
+		}
+		return set;
+	}
+
+	/*
+	 * Whether the space delimited word starts with all symbols of the prefix, so
+	 * a prefix ASSOC does not match a word starting with ASSOC_REQ
+	 */
+	private static boolean extendsWord(String word, String prefix) {
+		return prefix.isEmpty() || word.equals(prefix) || word.startsWith(prefix + " ");
+	}
+
+	private static String join(String[] symbols, int length) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < length; i++) {
+			if (i > 0)
+				sb.append(' ');
+			sb.append(symbols[i]);
+		}
+		return sb.toString();
+	}
+}
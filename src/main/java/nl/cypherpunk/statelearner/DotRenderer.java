@@ -0,0 +1,178 @@
+/*
+ *  Copyright (c) 2016 Joeri de Ruiter
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package nl.cypherpunk.statelearner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import de.learnlib.logging.LearnLogger;
+import net.automatalib.automata.transout.MealyMachine;
+import net.automatalib.util.graphs.dot.GraphDOT;
+import net.automatalib.words.impl.SimpleAlphabet;
+
+/**
+ * Writes hypotheses to DOT files and converts them to PDF on a background
+ * thread, so the learning loop does not wait for graphviz.
+ *
+ * The DOT representation is generated in the calling thread, as the learning
+ * algorithm keeps modifying the hypothesis after it has been submitted. Writing
+ * the file and running graphviz happens in the background. At most one dot
+ * process runs at a time and it is killed when it exceeds the timeout. PDFs are
+ * only rendered for the most recently submitted model: rounds that have been
+ * superseded by the time the worker gets to them only get their DOT file.
+ */
+public class DotRenderer {
+	public static final String RENDER_ALL = "all";
+	public static final String RENDER_FINAL = "final";
+	public static final String RENDER_NONE = "none";
+
+	private static class Job {
+		final String filename;
+		final String dot;
+		final boolean isFinal;
+
+		Job(String filename, String dot, boolean isFinal) {
+			this.filename = filename;
+			this.dot = dot;
+			this.isFinal = isFinal;
+		}
+	}
+
+	private final Deque<Job> queue = new ArrayDeque<>();
+	private final int capacity;
+	private final String mode;
+	private final long timeout;
+	private final LearnLogger log;
+	private boolean busy = false;
+
+	/**
+	 * @param mode
+	 *            Which models to convert to PDF: all, final or none
+	 * @param capacity
+	 *            Maximum number of DOT files waiting to be written
+	 * @param timeout
+	 *            Maximum time in seconds a single dot process may take
+	 */
+	public DotRenderer(String mode, int capacity, long timeout) {
+		this.mode = mode;
+		this.capacity = capacity;
+		this.timeout = timeout;
+		this.log = LearnLogger.getLogger(Learner.class.getSimpleName());
+
+		Thread worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				work();
+			}
+		}, "DotRenderer");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Queue a model to be written to the given file. If the queue is full, the DOT
+	 * file is written directly and no PDF is generated for it.
+	 */
+	public void submit(MealyMachine<?, String, ?, String> model, SimpleAlphabet<String> alphabet, String filename,
+			boolean isFinal) throws IOException {
+		StringBuilder dot = new StringBuilder();
+		GraphDOT.write(model, alphabet, dot);
+		Job job = new Job(filename, dot.toString(), isFinal);
+
+		synchronized (this) {
+			if (queue.size() < capacity || isFinal) {
+				queue.addLast(job);
+				notifyAll();
+				return;
+			}
+		}
+
+		log.log(Level.FINE, "Render queue full, writing " + filename + " without PDF");
+		writeDot(job);
+	}
+
+	/**
+	 * Wait until all queued models have been written and rendered.
+	 */
+	public synchronized void flush() throws InterruptedException {
+		while (!queue.isEmpty() || busy) {
+			wait();
+		}
+	}
+
+	private void work() {
+		while (true) {
+			Job job;
+			boolean superseded;
+			synchronized (this) {
+				while (queue.isEmpty()) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				job = queue.pollFirst();
+				superseded = !queue.isEmpty();
+				busy = true;
+			}
+
+			try {
+				writeDot(job);
+				if (!superseded && shouldRender(job))
+					render(job.filename);
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Failed to write " + job.filename + ": " + e.getMessage());
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				synchronized (this) {
+					busy = false;
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	private boolean shouldRender(Job job) {
+		if (RENDER_ALL.equals(mode))
+			return true;
+		if (RENDER_FINAL.equals(mode))
+			return job.isFinal;
+		return false;
+	}
+
+	private void writeDot(Job job) throws IOException {
+		PrintStream psDotFile = new PrintStream(new File(job.filename));
+		psDotFile.print(job.dot);
+		psDotFile.close();
+	}
+
+	private void render(String filename) throws IOException, InterruptedException {
+		// Convert .dot to .pdf
+		Process dot = new ProcessBuilder("dot", "-Tpdf", "-O", filename).inheritIO().start();
+		if (!dot.waitFor(timeout, TimeUnit.SECONDS)) {
+			dot.destroyForcibly();
+			log.log(Level.WARNING, "Rendering " + filename + " took longer than " + timeout + "s, aborted");
+		}
+	}
+}
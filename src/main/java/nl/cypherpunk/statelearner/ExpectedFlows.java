@@ -0,0 +1,136 @@
+/*
+ *  Copyright (c) 2016 Joeri de Ruiter
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package nl.cypherpunk.statelearner;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.automatalib.words.Word;
+
+/**
+ * The expected flows from the configuration, compiled into a trie over their
+ * input symbols. A response is checked in a single pass over the query: every
+ * node stores the output each flow through it expects at that step, and a flow
+ * is violated if its complete input sequence is a prefix of the query and one
+ * of its outputs differs from the response.
+ *
+ * The number of retries caused by every flow is counted, so flows that keep
+ * failing can be spotted in the logs.
+ */
+public class ExpectedFlows {
+	private static class Node {
+		final Map<String, Node> children = new HashMap<>();
+		// Flows passing through this node and the output they expect here
+		final List<Integer> flows = new ArrayList<>();
+		final List<String> outputs = new ArrayList<>();
+		// Flows whose input sequence ends in this node
+		final List<Integer> complete = new ArrayList<>();
+	}
+
+	private final Node root = new Node();
+	private final List<String> descriptions = new ArrayList<>();
+	private final AtomicLongArray retries;
+
+	public ExpectedFlows(List<? extends List<String[]>> flows) {
+		for (int f = 0; f < flows.size(); f++) {
+			Node node = root;
+			StringBuilder description = new StringBuilder();
+			for (String[] qr : flows.get(f)) {
+				Node child = node.children.get(qr[0]);
+				if (child == null) {
+					child = new Node();
+					node.children.put(qr[0], child);
+				}
+				node = child;
+				node.flows.add(f);
+				node.outputs.add(qr[1]);
+				description.append('{').append(qr[0]).append(':').append(qr[1]).append('}');
+			}
+			node.complete.add(f);
+			descriptions.add("[" + description + "]");
+		}
+		retries = new AtomicLongArray(flows.size());
+	}
+
+	public int size() {
+		return descriptions.size();
+	}
+
+	/**
+	 * @param query
+	 *            Inputs of the query
+	 * @param response
+	 *            Outputs of the query without timestamps
+	 * @return Index of the first flow that is not respected by the response, or
+	 *         -1 if the response is consistent with all flows
+	 */
+	public int check(Word<?> query, Word<?> response) {
+		BitSet violated = null;
+		Node node = root;
+		int length = Math.min(query.length(), response.length());
+
+		for (int i = 0; i < length; i++) {
+			node = node.children.get(query.getSymbol(i).toString());
+			if (node == null)
+				return -1;
+
+			String output = response.getSymbol(i).toString();
+			for (int j = 0; j < node.flows.size(); j++) {
+				if (!node.outputs.get(j).equals(output)) {
+					if (violated == null)
+						violated = new BitSet();
+					violated.set(node.flows.get(j));
+				}
+			}
+
+			if (violated != null) {
+				for (int f : node.complete) {
+					if (violated.get(f))
+						return f;
+				}
+			}
+		}
+		return -1;
+	}
+
+	public void recordRetry(int flow) {
+		retries.incrementAndGet(flow);
+	}
+
+	public long getRetries(int flow) {
+		return retries.get(flow);
+	}
+
+	public String getDescription(int flow) {
+		return descriptions.get(flow);
+	}
+
+	/**
+	 * @return Number of retries per flow, one flow per line
+	 */
+	public String getSummary() {
+		StringBuilder sb = new StringBuilder("Expected flow retries:");
+		for (int f = 0; f < descriptions.size(); f++) {
+			sb.append("\n  ").append(descriptions.get(f)).append(": ").append(retries.get(f));
+		}
+		return sb.toString();
+	}
+}
@@ -26,8 +26,16 @@ import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
 import java.util.Random;
+import java.util.Set;
+import java.util.function.BiPredicate;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
@@ -44,8 +52,11 @@ import de.learnlib.algorithms.rivestschapire.RivestSchapireMealy;
 import de.learnlib.algorithms.ttt.mealy.TTTLearnerMealy;
 import de.learnlib.api.EquivalenceOracle;
 import de.learnlib.api.LearningAlgorithm;
+import de.learnlib.api.MembershipOracle.MealyMembershipOracle;
 import de.learnlib.api.SUL;
+import nl.cypherpunk.modifiedcache.MajorityVote;
 import nl.cypherpunk.modifiedcache.MealyCacheOracle;
+import nl.cypherpunk.modifiedcache.SequentialTest;
 import de.learnlib.counterexamples.AcexLocalSuffixFinder;
 import de.learnlib.eqtests.basic.RandomWordsEQOracle.MealyRandomWordsEQOracle;
 import de.learnlib.eqtests.basic.WMethodEQOracle;
@@ -62,6 +73,8 @@ import net.automatalib.util.graphs.dot.GraphDOT;
 import net.automatalib.words.Word;
 import net.automatalib.words.impl.SimpleAlphabet;
 import nl.cypherpunk.statelearner.ModifiedWMethodEQOracle.MealyModifiedWMethodEQOracle;
+import nl.cypherpunk.statelearner.simulator.SimulatorConfig;
+import nl.cypherpunk.statelearner.simulator.SimulatorSUL;
 import nl.cypherpunk.statelearner.smartcard.SCConfig;
 import nl.cypherpunk.statelearner.smartcard.SCSUL;
 import nl.cypherpunk.statelearner.socket.SocketConfig;
@@ -91,6 +104,15 @@ public class Learner {
 	MealyCacheOracle<String, String> cachedEqOracle;
 	MealyCounterOracle<String, String> statsCachedEqOracle;
 	EquivalenceOracle<MealyMachine<?, String, ?, String>, String, Word<String>> equivalenceAlgorithm;
+	CacheEQOracle cacheEquivalenceAlgorithm;
+	CounterexampleMinimiser minimiser;
+	MajorityVote<String, String> majorityVote;
+	List<SUL<String, String>> voteSuls = new ArrayList<>();
+	List<SUL<String, String>> eqSuls;
+
+	DotRenderer renderer;
+	Checkpoint checkpoint;
+	List<DefaultQuery<String, Word<String>>> pendingRepairs = new ArrayList<>();
 
 	public Learner(LearningConfig config) throws Exception {
 		this.config = config;
@@ -102,6 +124,9 @@ public class Learner {
 		}
 
 		configureLogging(config.output_dir);
+		renderer = new DotRenderer(config.render_pdf, config.render_queue, config.render_timeout);
+		checkpoint = new Checkpoint(config.output_dir);
+		LearnerMetrics.get().start(config.output_dir, config.metrics_interval, config.metrics_jmx);
 		LearnLogger log = LearnLogger.getLogger(Learner.class.getSimpleName());
 
 		// Check the type of learning we want to do and create corresponding
@@ -124,11 +149,54 @@ public class Learner {
 			// Create the TLS SUL
 			sul = new TLSSUL(new TLSConfig(config));
 			alphabet = ((TLSSUL) sul).getAlphabet();
+		} else if (config.type == LearningConfig.TYPE_SIMULATOR) {
+			log.log(Level.INFO, "Using simulator SUL");
+
+			// Create the simulated SUL
+			sul = new SimulatorSUL(new SimulatorConfig(config));
+			alphabet = ((SimulatorSUL) sul).getAlphabet();
 		}
 		config.setAlphabet(alphabet);
 
+		if (config.timeout_escalation && (!config.time_learn || config.getBig_timeout() == null)) {
+			log.log(Level.WARNING, "timeout_escalation needs time_learn and big_timeout, disabling it");
+			config.timeout_escalation = false;
+		}
+
+		if (config.conflict_vote_instances > 0) {
+			if (sul.canFork()) {
+				// Instances share the learning queries log
+				List<MealyLogOracle<String, String>> instances = new ArrayList<>();
+				for (SUL<String, String> fork : forkSul(sul, config.conflict_vote_instances)) {
+					voteSuls.add(fork);
+					instances.add(new MealyLogOracle<String, String>(fork, LearnLogger.getLogger("learning_queries"),
+							config));
+				}
+				if (instances.isEmpty()) {
+					log.log(Level.WARNING, "No forks of the SUL available, conflicts are not decided by majority vote");
+				} else {
+					majorityVote = new MajorityVote<>(instances);
+					log.log(Level.INFO, "Deciding conflicts by majority vote of " + instances.size() + " instances");
+				}
+			} else {
+				log.log(Level.WARNING, "SUL cannot be forked, conflicts are not decided by majority vote");
+			}
+		}
+
 		loadLearningAlgorithm(config.learning_algorithm, alphabet, sul);
 		loadEquivalenceAlgorithm(config.eqtest, alphabet, sul);
+
+		if (config.resume) {
+			if (checkpoint.exists()) {
+				checkpoint.load();
+				log.log(Level.INFO, "Loaded checkpoint at round " + checkpoint.getRound());
+				if (!config.use_cache) {
+					log.log(Level.WARNING, "Resuming without use_cache, replay will query the SUL");
+				}
+			} else {
+				log.log(Level.WARNING, "No checkpoint found in " + config.output_dir + ", starting from scratch");
+			}
+		}
 	}
 
 	public void loadLearningAlgorithm(String algorithm, SimpleAlphabet<String> alphabet, SUL<String, String> sul)
@@ -142,10 +210,23 @@ public class Learner {
 		// "membership queries to SUL");
 		// Use cache oracle to prevent double queries to the SUL
 		cachedMemOracle = MealyCacheOracle.createDAGCacheOracle(alphabet, null, logMemOracle, config.getDbConn());
+		cachedMemOracle.setConflictRepair(config.conflict_repair);
+		if (config.conflict_confidence > 0)
+			cachedMemOracle.setSequentialTest(new SequentialTest(config.conflict_confidence, config.conflict_samples));
+		cachedMemOracle.setMajorityVote(majorityVote);
+		if (config.time_learn)
+			cachedMemOracle.setQueryFilter(config.getDisabledPrefixes());
 		// Count the number of queries to the cache
 		statsCachedMemOracle = new MealyCounterOracle<String, String>(cachedMemOracle, "membership queries to cache");
 
-		// Instantiate the selected learning algorithm
+		createLearningAlgorithm(algorithm, alphabet);
+	}
+
+	/*
+	 * Instantiate the selected learning algorithm on top of the existing cached
+	 * membership oracle
+	 */
+	private void createLearningAlgorithm(String algorithm, SimpleAlphabet<String> alphabet) throws Exception {
 		switch (algorithm.toLowerCase()) {
 		case "lstar":
 			learningAlgorithm = new ExtensibleLStarMealyBuilder<String, String>().withAlphabet(alphabet)
@@ -185,8 +266,24 @@ public class Learner {
 		// Create the equivalence oracle
 		logEqOracle = new MealyLogOracle<String, String>(sul, LearnLogger.getLogger("equivalence_queries"), config);
 		cachedEqOracle = MealyCacheOracle.createDAGCacheOracle(alphabet, null, logEqOracle, config.getDbConn());
+		cachedEqOracle.setConflictRepair(config.conflict_repair);
+		if (config.conflict_confidence > 0)
+			cachedEqOracle.setSequentialTest(new SequentialTest(config.conflict_confidence, config.conflict_samples));
+		cachedEqOracle.setMajorityVote(majorityVote);
+		if (config.time_learn)
+			cachedEqOracle.setQueryFilter(config.getDisabledPrefixes());
 		statsCachedEqOracle = new MealyCounterOracle<String, String>(cachedEqOracle, "equivalence queries to cache");
 
+		// Check the hypothesis against cached observations before querying the SUL
+		if (config.cache_eqtest) {
+			cacheEquivalenceAlgorithm = new CacheEQOracle(Arrays.asList(cachedMemOracle, cachedEqOracle),
+					config.getDbConn());
+		}
+
+		if (config.minimise_ce) {
+			minimiser = new CounterexampleMinimiser(statsCachedMemOracle, config.ce_minimise_budget);
+		}
+
 		// Instantiate the selected equivalence algorithm
 		switch (algorithm.toLowerCase()) {
 		case "wmethod":
@@ -195,8 +292,10 @@ public class Learner {
 			break;
 
 		case "modifiedwmethod":
-			equivalenceAlgorithm = new MealyModifiedWMethodEQOracle<String, String>(config.max_depth,
-					statsCachedEqOracle);
+			MealyModifiedWMethodEQOracle<String, String> modifiedWMethod = new MealyModifiedWMethodEQOracle<String, String>(
+					config.max_depth, config.eq_batch_size, statsCachedEqOracle);
+			modifiedWMethod.setClosedOutputs(config.closed_outputs);
+			equivalenceAlgorithm = modifiedWMethod;
 			break;
 
 		case "wpmethod":
@@ -204,6 +303,21 @@ public class Learner {
 					statsCachedEqOracle);
 			break;
 
+		case "parallelwmethod":
+		case "parallelwpmethod":
+			List<MealyMembershipOracle<String, String>> eqWorkers = createEqWorkers(sul);
+			// Without forks the cached oracle is the only worker, and it cannot verify
+			// counter-examples from another thread at the same time
+			equivalenceAlgorithm = new ParallelWMethodEQOracle<String, String>(config.max_depth,
+					algorithm.equalsIgnoreCase("parallelwpmethod"), config.eq_queue_size, eqWorkers,
+					eqWorkers.contains(statsCachedEqOracle) ? null : statsCachedEqOracle);
+			break;
+
+		case "prioritised":
+			equivalenceAlgorithm = new PrioritisedEQOracle(config.max_depth, config.eq_scores, config.eq_query_budget,
+					config.eq_time_budget, statsCachedEqOracle, config.use_cache ? config.getDbConn() : null);
+			break;
+
 		case "randomwords":
 			equivalenceAlgorithm = new MealyRandomWordsEQOracle<String, String>(statsCachedEqOracle, config.min_length,
 					config.max_length, config.nr_queries, new Random(config.seed));
@@ -214,6 +328,52 @@ public class Learner {
 		}
 	}
 
+	/*
+	 * Create the membership oracles used by the parallel equivalence oracles. Each
+	 * worker gets its own fork of the SUL, wrapped in a log oracle so test words
+	 * are logged, cached and timed like the sequential equivalence queries. The
+	 * workers share the equivalence queries log. If the SUL cannot be forked, a
+	 * single worker uses the cached equivalence oracle instead. The forks are only
+	 * made once and reused when the learner is reset, so devices such as
+	 * smartcard readers are not claimed again.
+	 */
+	List<MealyMembershipOracle<String, String>> createEqWorkers(SUL<String, String> sul) {
+		List<MealyMembershipOracle<String, String>> workers = new ArrayList<>();
+		if (!sul.canFork()) {
+			LearnLogger.getLogger(Learner.class.getSimpleName()).log(Level.WARNING,
+					"SUL cannot be forked, running equivalence queries in a single thread");
+			workers.add(statsCachedEqOracle);
+			return workers;
+		}
+
+		if (eqSuls == null)
+			eqSuls = forkSul(sul, config.eq_threads);
+		for (SUL<String, String> fork : eqSuls) {
+			workers.add(new MealyLogOracle<String, String>(fork, LearnLogger.getLogger("equivalence_queries"),
+					config));
+		}
+		if (workers.isEmpty())
+			workers.add(statsCachedEqOracle);
+		return workers;
+	}
+
+	/*
+	 * Fork the SUL up to the given number of times. SULs backed by a limited
+	 * number of devices, such as smartcard readers, can run out of forks before.
+	 */
+	static List<SUL<String, String>> forkSul(SUL<String, String> sul, int count) {
+		List<SUL<String, String>> forks = new ArrayList<>();
+		try {
+			while (forks.size() < count) {
+				forks.add(sul.fork());
+			}
+		} catch (UnsupportedOperationException e) {
+			LearnLogger.getLogger(Learner.class.getSimpleName()).log(Level.WARNING,
+					"Using " + forks.size() + " of " + count + " forks of the SUL: " + e.getMessage());
+		}
+		return forks;
+	}
+
 	public SUL<String, String> getSul() {
 		return sul;
 	}
@@ -226,40 +386,97 @@ public class Learner {
 
 		log.log(Level.INFO, "Starting learning");
 
+		if (checkpoint.escalated) {
+			// The timeout was escalated before the learner was restarted or resumed
+			useBigTimeout();
+		} else if (config.time_learn) {
+			// Learn with the small timeout first
+			setTimeout(config.getSmall_timeout());
+		}
+
 		SimpleProfiler.start("Total time");
+		long startTime = System.currentTimeMillis();
+		long previousElapsed = checkpoint.elapsed;
 
 		boolean learning = true;
 		Counter round = new Counter("Rounds", "");
-
-		round.increment();
-		log.logPhase("Starting round " + round.getCount());
-		SimpleProfiler.start("Learning");
-		learningAlgorithm.startLearning();
-		SimpleProfiler.stop("Learning");
-
-		MealyMachine<?, String, ?, String> hypothesis = learningAlgorithm.getHypothesisModel();
+		MealyMachine<?, String, ?, String> hypothesis;
+
+		if (checkpoint.isEmpty()) {
+			round.increment();
+			LearnerMetrics.get().startRound(round.getCount());
+			log.logPhase("Starting round " + round.getCount());
+			SimpleProfiler.start("Learning");
+			learningAlgorithm.startLearning();
+			hypothesis = applyRepairs(learningAlgorithm.getHypothesisModel());
+			SimpleProfiler.stop("Learning");
+		} else {
+			round.increment(Math.max(checkpoint.getRound(), checkpoint.getCounterexamples().size() + 1));
+			LearnerMetrics.get().startRound(round.getCount());
+			log.logPhase("Resuming at round " + round.getCount() + " by replaying "
+					+ checkpoint.getCounterexamples().size() + " counter-examples");
+			SimpleProfiler.start("Learning");
+			hypothesis = applyRepairs(replayCheckpoint());
+			SimpleProfiler.stop("Learning");
+		}
 
 		while (learning) {
 			// Write outputs
-			writeDotModel(hypothesis, alphabet, config.output_dir + "/hypothesis_" + round.getCount() + ".dot");
+			renderer.submit(hypothesis, alphabet, config.output_dir + "/hypothesis_" + round.getCount() + ".dot", false);
+
+			if (config.checkpoint_interval > 0 && round.getCount() % config.checkpoint_interval == 0) {
+				saveCheckpoint(round.getCount(), hypothesis, previousElapsed + System.currentTimeMillis() - startTime);
+			}
+
+			// Search counter-example, first in the observations made so far
+			DefaultQuery<String, Word<String>> counterExample = null;
+			if (cacheEquivalenceAlgorithm != null) {
+				SimpleProfiler.start("Searching for counter-example in cache");
+				counterExample = cacheEquivalenceAlgorithm.findCounterExample(hypothesis, alphabet);
+				SimpleProfiler.stop("Searching for counter-example in cache");
+			}
+
+			if (counterExample == null) {
+				SimpleProfiler.start("Searching for counter-example");
+				counterExample = equivalenceAlgorithm.findCounterExample(hypothesis, alphabet);
+				SimpleProfiler.stop("Searching for counter-example");
+			}
 
-			// Search counter-example
-			SimpleProfiler.start("Searching for counter-example");
-			DefaultQuery<String, Word<String>> counterExample = equivalenceAlgorithm.findCounterExample(hypothesis,
-					alphabet);
-			SimpleProfiler.stop("Searching for counter-example");
+			if (counterExample == null && config.timeout_escalation && !checkpoint.escalated) {
+				// Check the transitions that depend on timing with the big timeout, and
+				// search for counter-examples again if that changed the hypothesis
+				SimpleProfiler.start("Timeout escalation");
+				MealyMachine<?, String, ?, String> patched = escalateTimeout(hypothesis);
+				SimpleProfiler.stop("Timeout escalation");
+				if (patched != null) {
+					hypothesis = patched;
+					round.increment();
+					LearnerMetrics.get().startRound(round.getCount());
+					log.logPhase("Starting round " + round.getCount() + " with the big timeout");
+					continue;
+				}
+			}
 
 			if (counterExample == null) {
 				// No counter-example found, so done learning
 				learning = false;
 
 				// Write outputs
-				writeDotModel(hypothesis, alphabet, config.output_dir + "/learnedModel.dot");
+				renderer.submit(hypothesis, alphabet, config.output_dir + "/learnedModel.dot", true);
 				// writeAutModel(hypothesis, alphabet, config.output_dir + "/learnedModel.aut");
 			} else {
 				// Counter example found, update hypothesis and continue learning
 				log.logCounterexample("Counter-example found: " + counterExample.toString());
+				if (minimiser != null) {
+					SimpleProfiler.start("Minimising counter-example");
+					counterExample = minimiser.minimise(hypothesis, counterExample);
+					SimpleProfiler.stop("Minimising counter-example");
+					log.logCounterexample("Minimised counter-example (" + minimiser.getQueries() + " queries): "
+							+ counterExample.toString());
+				}
+				checkpoint.addCounterexample(counterExample.getInput());
 				round.increment();
+				LearnerMetrics.get().startRound(round.getCount());
 				log.logPhase("Starting round " + round.getCount());
 				if(round.getCount() >= 4) {
 					String x = hypothesis.computeOutput(counterExample.getInput()).toString();
@@ -267,26 +484,225 @@ public class Learner {
 				}
 
 				SimpleProfiler.start("Learning");
+				// Make sure both caches agree before the membership queries of the
+				// refinement are asked
+				syncRepairs();
 				learningAlgorithm.refineHypothesis(counterExample);
+				hypothesis = applyRepairs(learningAlgorithm.getHypothesisModel());
 				SimpleProfiler.stop("Learning");
-
-				hypothesis = learningAlgorithm.getHypothesisModel();
 			}
 		}
 
 		SimpleProfiler.stop("Total time");
 
+		// Wait for the final model and the query logs to be written
+		renderer.flush();
+		QueryLog.closeAll();
+		LearnerMetrics.get().stop();
+
 		// Output statistics
 		log.log(Level.INFO, "-------------------------------------------------------");
 		log.log(Level.INFO, SimpleProfiler.getResults());
+		if (previousElapsed > 0) {
+			log.log(Level.INFO, "Time spent before resuming: " + previousElapsed + "ms");
+		}
 		log.log(Level.INFO, round.getSummary());
+		if (config.getExpectedFlows() != null) {
+			log.log(Level.INFO, config.getExpectedFlows().getSummary());
+		}
 		// log.log(Level.INFO, statsMemOracle.getStatisticalData().getSummary());
-		// log.log(Level.INFO, statsCachedMemOracle.getStatisticalData().getSummary());
+		log.log(Level.INFO, statsCachedMemOracle.getStatisticalData().getSummary());
 		// log.log(Level.INFO, statsEqOracle.getStatisticalData().getSummary());
-		// log.log(Level.INFO, statsCachedEqOracle.getStatisticalData().getSummary());
+		log.log(Level.INFO, statsCachedEqOracle.getStatisticalData().getSummary());
+		if (majorityVote != null)
+			log.log(Level.INFO, majorityVote.getSummary());
+		if (config.time_learn)
+			log.log(Level.INFO, "Queries answered by the learning purpose: "
+					+ (cachedMemOracle.getFilteredQueries() + cachedEqOracle.getFilteredQueries()));
 		log.log(Level.INFO, "States in final hypothesis: " + hypothesis.size());
 	}
 
+	/*
+	 * Switch to the big timeout and ask the transitions of the hypothesis that
+	 * depend on timing again, bypassing the caches. Where the output changes, the
+	 * cache database, the DAG caches and the disabled prefixes are corrected like
+	 * for a conflict, and the hypothesis is refined with the new observation on a
+	 * learner rebuilt from the repaired caches. Returns null if every transition
+	 * was confirmed.
+	 */
+	private MealyMachine<?, String, ?, String> escalateTimeout(MealyMachine<?, String, ?, String> hypothesis) {
+		LearnLogger log = LearnLogger.getLogger(Learner.class.getSimpleName());
+		TimeoutEscalation escalation = new TimeoutEscalation(alphabet);
+		Set<Word<String>> verified = new HashSet<>();
+		int patches = 0;
+
+		useBigTimeout();
+		log.logPhase("Verifying transitions with big timeout " + config.getBig_timeout());
+
+		// Like the big timeout partition, the caches only keep the observations of
+		// the small timeout that do not depend on timing
+		BiPredicate<String, String> dependsOnTiming = new BiPredicate<String, String>() {
+			@Override
+			public boolean test(String output, String previous) {
+				return TimeoutEscalation.dependsOnTiming(output, previous);
+			}
+		};
+		int removed = cachedMemOracle.removeFrom(dependsOnTiming) + cachedEqOracle.removeFrom(dependsOnTiming);
+		log.log(Level.INFO, "Removed " + removed + " cached words with timing dependent outputs");
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Word<String> input : escalation.transitions(hypothesis)) {
+				if (!verified.add(input))
+					continue;
+
+				Word<String> expected = hypothesis.computeOutput(input);
+				Word<String> output = logMemOracle.answerQuery(Word.<String> epsilon(), input, false);
+				if (TimeoutEscalation.agrees(expected, output))
+					continue;
+
+				log.logCounterexample("Big timeout changed " + input + " / " + expected + " to " + output);
+				Utils.correctDBcache(input.toString(), output.toString(), config.getDbConn());
+				logMemOracle.correctDisabledPrefixes(input.toString(), output.toString());
+				cachedMemOracle.repair(input, output);
+				cachedEqOracle.repair(input, output);
+				pendingRepairs.add(new DefaultQuery<>(Word.<String> epsilon(), input, output));
+				changed = true;
+				patches++;
+			}
+			if (changed) {
+				// The learner still holds the outputs of the small timeout, which it can
+				// not refine away, so it is rebuilt from the repaired caches before the
+				// corrected transitions are applied
+				try {
+					createLearningAlgorithm(config.learning_algorithm, alphabet);
+				} catch (Exception e) {
+					// Never happens, the learning algorithm was created before
+				}
+				hypothesis = applyRepairs(replayCheckpoint());
+			}
+		}
+
+		log.log(Level.INFO, "Verified " + verified.size() + " transitions with the big timeout, " + patches
+				+ " changed");
+		return patches > 0 ? hypothesis : null;
+	}
+
+	/*
+	 * Ask all following queries with the big timeout, and keep their
+	 * observations apart from those made with the small timeout
+	 */
+	private void useBigTimeout() {
+		checkpoint.escalated = true;
+		setTimeout(config.getBig_timeout());
+		config.useBigTimeoutPartition();
+	}
+
+	/*
+	 * Tell the SUL which timeout to use for the following queries
+	 */
+	void setTimeout(String timeout) {
+		sul.step("TIMEOUT_MODIFY_" + timeout);
+		for (SUL<String, String> fork : voteSuls) {
+			fork.step("TIMEOUT_MODIFY_" + timeout);
+		}
+		if (eqSuls != null) {
+			for (SUL<String, String> fork : eqSuls) {
+				fork.step("TIMEOUT_MODIFY_" + timeout);
+			}
+		}
+	}
+
+	/*
+	 * Rebuild the hypothesis from the checkpoint. The counter-examples are
+	 * answered again by the cached membership oracle, so the replay is served from
+	 * the query cache instead of the SUL where possible.
+	 */
+	private MealyMachine<?, String, ?, String> replayCheckpoint() {
+		LearnLogger log = LearnLogger.getLogger(Learner.class.getSimpleName());
+
+		learningAlgorithm.startLearning();
+		MealyMachine<?, String, ?, String> hypothesis = learningAlgorithm.getHypothesisModel();
+
+		for (Word<String> input : checkpoint.getCounterexamples()) {
+			DefaultQuery<String, Word<String>> query = new DefaultQuery<>(input);
+			statsCachedMemOracle.processQueries(Collections.singleton(query));
+
+			if (Objects.equals(hypothesis.computeOutput(input), query.getOutput())) {
+				log.log(Level.INFO, "Checkpointed counter-example no longer applies: " + query);
+				continue;
+			}
+
+			learningAlgorithm.refineHypothesis(query);
+			hypothesis = learningAlgorithm.getHypothesisModel();
+		}
+
+		if (checkpoint.hypothesisSize != 0 && checkpoint.hypothesisSize != hypothesis.size()) {
+			log.log(Level.WARNING, "Replayed hypothesis has " + hypothesis.size() + " states, checkpoint "
+					+ checkpoint.hypothesis + " had " + checkpoint.hypothesisSize);
+		}
+		return hypothesis;
+	}
+
+	/*
+	 * Collect the observations that were corrected in one of the caches and apply
+	 * the same correction to the other cache.
+	 */
+	private void syncRepairs() {
+		for (DefaultQuery<String, Word<String>> query : cachedMemOracle.drainRepairs()) {
+			cachedEqOracle.repair(query.getInput(), query.getOutput());
+			pendingRepairs.add(query);
+		}
+		for (DefaultQuery<String, Word<String>> query : cachedEqOracle.drainRepairs()) {
+			cachedMemOracle.repair(query.getInput(), query.getOutput());
+			pendingRepairs.add(query);
+		}
+	}
+
+	/*
+	 * Refine the hypothesis with observations that were corrected in the cache
+	 * while answering queries, instead of restarting the learner. Falls back to a
+	 * restart if the number of corrections gets out of hand.
+	 */
+	private MealyMachine<?, String, ?, String> applyRepairs(MealyMachine<?, String, ?, String> hypothesis) {
+		LearnLogger log = LearnLogger.getLogger(Learner.class.getSimpleName());
+		int applied = 0;
+
+		syncRepairs();
+		while (!pendingRepairs.isEmpty()) {
+			DefaultQuery<String, Word<String>> query = pendingRepairs.remove(0);
+			if (!Objects.equals(hypothesis.computeOutput(query.getInput()), query.getOutput())) {
+				if (++applied > config.max_conflict_repairs) {
+					pendingRepairs.clear();
+					throw new ConflictException("Too many corrected observations, restarting learner");
+				}
+
+				log.logCounterexample("Refining with corrected observation: " + query.toString());
+				checkpoint.addCounterexample(query.getInput());
+				learningAlgorithm.refineHypothesis(query);
+				hypothesis = learningAlgorithm.getHypothesisModel();
+			}
+			syncRepairs();
+		}
+		return hypothesis;
+	}
+
+	private void saveCheckpoint(long round, MealyMachine<?, String, ?, String> hypothesis, long elapsed) {
+		checkpoint.round = round;
+		checkpoint.elapsed = elapsed;
+		checkpoint.profiler = SimpleProfiler.getResults();
+		checkpoint.hypothesis = "hypothesis_" + round + ".dot";
+		checkpoint.hypothesisSize = hypothesis.size();
+
+		try {
+			checkpoint.save();
+		} catch (IOException e) {
+			LearnLogger.getLogger(Learner.class.getSimpleName()).log(Level.WARNING,
+					"Failed to write checkpoint: " + e.getMessage());
+		}
+	}
+
 	public static void writeAutModel(MealyMachine<?, String, ?, String> model, SimpleAlphabet<String> alphabet,
 			String filename) throws FileNotFoundException {
 		// Make use of LearnLib's internal representation of states as integers
@@ -331,30 +747,51 @@ public class Learner {
 	public void configureLogging(String output_dir) throws SecurityException, IOException {
 		LearnLogger loggerLearnlib = LearnLogger.getLogger("de.learnlib");
 		loggerLearnlib.setLevel(Level.ALL);
-		FileHandler fhLearnlibLog = new FileHandler(output_dir + "/learnlib.log");
+		FileHandler fhLearnlibLog = new FileHandler(output_dir + "/learnlib.log", config.resume);
 		loggerLearnlib.addHandler(fhLearnlibLog);
 		fhLearnlibLog.setFormatter(new SimpleFormatter());
 
 		LearnLogger loggerLearner = LearnLogger.getLogger(Learner.class.getSimpleName());
 		loggerLearner.setLevel(Level.ALL);
-		FileHandler fhLearnerLog = new FileHandler(output_dir + "/learner.log");
+		FileHandler fhLearnerLog = new FileHandler(output_dir + "/learner.log", config.resume);
 		loggerLearner.addHandler(fhLearnerLog);
 		fhLearnerLog.setFormatter(new SimpleFormatter());
 		loggerLearner.addHandler(new ConsoleHandler());
 
-		LearnLogger loggerLearningQueries = LearnLogger.getLogger("learning_queries");
-		loggerLearningQueries.setLevel(Level.ALL);
-		FileHandler fhLearningQueriesLog = new FileHandler(output_dir + "/learning_queries.log");
-		loggerLearningQueries.addHandler(fhLearningQueriesLog);
-		fhLearningQueriesLog.setFormatter(new SimpleFormatter());
-		loggerLearningQueries.addHandler(new ConsoleHandler());
-
-		LearnLogger loggerEquivalenceQueries = LearnLogger.getLogger("equivalence_queries");
-		loggerEquivalenceQueries.setLevel(Level.ALL);
-		FileHandler fhEquivalenceQueriesLog = new FileHandler(output_dir + "/equivalence_queries.log");
-		loggerEquivalenceQueries.addHandler(fhEquivalenceQueriesLog);
-		fhEquivalenceQueriesLog.setFormatter(new SimpleFormatter());
-		loggerEquivalenceQueries.addHandler(new ConsoleHandler());
+		configureQueryLogging("learning_queries", output_dir);
+		configureQueryLogging("equivalence_queries", output_dir);
+	}
+
+	/*
+	 * Queries are either logged through a LearnLogger, like the other logs, or
+	 * through an asynchronous QueryLog in JSON lines or binary format.
+	 */
+	void configureQueryLogging(String name, String output_dir) throws IOException {
+		switch (config.query_log_format) {
+		case QueryLog.FORMAT_JSON:
+			QueryLog.register(name, new QueryLog(output_dir + "/" + name + ".jsonl", config.query_log_format,
+					config.query_log_buffer, config.resume));
+			break;
+
+		case QueryLog.FORMAT_BINARY:
+			QueryLog.register(name, new QueryLog(output_dir + "/" + name + ".bin", config.query_log_format,
+					config.query_log_buffer, config.resume));
+			break;
+
+		case QueryLog.FORMAT_NONE:
+			LearnLogger.getLogger(name).setLevel(Level.OFF);
+			break;
+
+		default:
+			LearnLogger loggerQueries = LearnLogger.getLogger(name);
+			loggerQueries.setLevel(Level.ALL);
+			FileHandler fhQueriesLog = new FileHandler(output_dir + "/" + name + ".log", config.resume);
+			loggerQueries.addHandler(fhQueriesLog);
+			fhQueriesLog.setFormatter(new SimpleFormatter());
+			if (config.query_log_console)
+				loggerQueries.addHandler(new ConsoleHandler());
+			break;
+		}
 	}
 
 	/*
@@ -362,6 +799,7 @@ public class Learner {
 	 * required.
 	 */
 	public void resetLearner() {
+		pendingRepairs.clear();
 		try {
 			loadLearningAlgorithm(config.learning_algorithm, alphabet, sul);
 			loadEquivalenceAlgorithm(config.eqtest, alphabet, sul);
@@ -372,18 +810,43 @@ public class Learner {
 	}
 
 	public static void main(String[] args) throws Exception {
-		if (args.length < 1) {
+		if (args.length > 0 && args[0].equals("cache")) {
+			CacheTool.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+
+		String configFile = null;
+		boolean resume = false;
+		boolean cacheService = false;
+		for (String arg : args) {
+			if (arg.equals("--resume"))
+				resume = true;
+			else if (arg.equals("--cache-service"))
+				cacheService = true;
+			else
+				configFile = arg;
+		}
+
+		if (configFile == null) {
 			System.err.println("Invalid number of parameters");
 			System.exit(-1);
 		}
-		LearningConfig config = new LearningConfig(args[0]);
-		Learner learner = new Learner(config);
-
-		if(config.time_learn) {
-			// Tell the Learner to use the following timeout value
-			learner.getSul().step("TIMEOUT_MODIFY_" + config.getSmall_timeout());
+		LearningConfig config = new LearningConfig(configFile);
+		config.resume = resume;
+
+		if (cacheService) {
+			// Only share the cache database with other learners, without learning
+			if (config.cache_service.equals(CacheService.CONNECT)) {
+				System.err.println("--cache-service can not be used with cache_service = connect");
+				System.exit(-1);
+			}
+			config.startCacheService();
+			// The service runs in daemon threads until the process is stopped
+			Thread.currentThread().join();
 		}
 
+		Learner learner = new Learner(config);
+
 		if (!config.use_cache) {
 			learner.learn();
 		} else {
@@ -391,13 +854,10 @@ public class Learner {
 			while (true) {
 				try {
 					learner.learn();
-					// TODO delete all timeout entries in cache
-					// tell interface to use big timeout
-					// recover any learned counter examples to recover model with
 					System.exit(0);
 				} catch (ConflictException e) {
-					// Note, currently if conflict occurs, logs and timers will be overwritten.
-					// TODO learning state may need to be extracted from database cache as a result
+					// The new learner is rebuilt from the counter-examples found so far,
+					// replayed against the corrected cache
 					learner.resetLearner();
 				}
 			}
@@ -0,0 +1,420 @@
+/*
+ *  Copyright (c) 2016 Joeri de Ruiter
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package nl.cypherpunk.statelearner;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import de.learnlib.logging.LearnLogger;
+
+/**
+ * Registry of metrics collected while learning: how queries are answered (DAG
+ * cache, query filter, database cache, disabled prefix or SUL), conflicts and
+ * retries, and the latency of resets and of every input symbol.
+ *
+ * There is a single registry per JVM, obtained with {@link #get()}, so oracles
+ * can record metrics without having it passed around. When started, the metrics
+ * are available over JMX and written to <code>metrics.csv</code> (totals) and
+ * <code>metrics_steps.csv</code> (latency per symbol) in the output directory at
+ * a fixed interval. At the start of every round the counts of the previous round
+ * are appended to <code>metrics_rounds.csv</code>.
+ */
+public class LearnerMetrics implements LearnerMetricsMXBean {
+	public static final String OBJECT_NAME = "nl.cypherpunk.statelearner:type=LearnerMetrics";
+
+	/**
+	 * Latency histogram with buckets of powers of 2 microseconds.
+	 */
+	public static class Histogram {
+		private static final int BUCKETS = 40;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+
+		public void record(long nanos) {
+			long micros = Math.max(0, nanos / 1000);
+			int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+			buckets.incrementAndGet(bucket);
+			count.increment();
+			sum.add(nanos);
+			long m;
+			while ((m = max.get()) < nanos && !max.compareAndSet(m, nanos)) {
+			}
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public double getMeanMillis() {
+			long n = count.sum();
+			return (n == 0) ? 0 : sum.sum() / 1e6 / n;
+		}
+
+		public double getMaxMillis() {
+			return max.get() / 1e6;
+		}
+
+		/**
+		 * @return Upper bound of the bucket containing the given percentile
+		 */
+		public double getPercentileMillis(double percentile) {
+			long n = count.sum();
+			if (n == 0)
+				return 0;
+			long rank = (long) Math.ceil(n * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank)
+					return (1L << i) / 1000.0;
+			}
+			return getMaxMillis();
+		}
+	}
+
+	// Names of the counters, in the order of counts()
+	private static final String[] COUNTERS = { "sul_queries", "dag_hits", "sqlite_hits", "disabled", "conflicts",
+			"conflict_repairs", "conflict_retries", "flow_retries", "resets", "filtered", "conflict_samples" };
+
+	// Created after COUNTERS, which the constructor needs
+	private static final LearnerMetrics INSTANCE = new LearnerMetrics();
+
+	private final LongAdder sulQueries = new LongAdder();
+	private final LongAdder dagHits = new LongAdder();
+	private final LongAdder sqliteHits = new LongAdder();
+	private final LongAdder disabled = new LongAdder();
+	private final LongAdder conflicts = new LongAdder();
+	private final LongAdder conflictRepairs = new LongAdder();
+	private final LongAdder conflictRetries = new LongAdder();
+	private final LongAdder flowRetries = new LongAdder();
+	private final LongAdder filtered = new LongAdder();
+	private final LongAdder conflictSamples = new LongAdder();
+
+	private final Histogram resets = new Histogram();
+	private final Histogram steps = new Histogram();
+	private final ConcurrentHashMap<String, Histogram> stepsPerSymbol = new ConcurrentHashMap<>();
+
+	private volatile long round = 0;
+	private long roundStart = System.currentTimeMillis();
+	private long[] roundCounts = new long[COUNTERS.length];
+
+	private String outputDir;
+	private ScheduledExecutorService scheduler;
+	private ObjectName objectName;
+
+	private LearnerMetrics() {
+	}
+
+	public static LearnerMetrics get() {
+		return INSTANCE;
+	}
+
+	public void sulQuery() {
+		sulQueries.increment();
+	}
+
+	public void dagHits(long n) {
+		dagHits.add(n);
+	}
+
+	public void sqliteHit() {
+		sqliteHits.increment();
+	}
+
+	public void disabledShortCircuit() {
+		disabled.increment();
+	}
+
+	public void conflict() {
+		conflicts.increment();
+	}
+
+	public void conflictRepair() {
+		conflictRepairs.increment();
+	}
+
+	public void conflictRetry() {
+		conflictRetries.increment();
+	}
+
+	public void flowRetry() {
+		flowRetries.increment();
+	}
+
+	public void filtered(long n) {
+		filtered.add(n);
+	}
+
+	public void conflictSample() {
+		conflictSamples.increment();
+	}
+
+	public void reset(long nanos) {
+		resets.record(nanos);
+	}
+
+	public void step(String symbol, long nanos) {
+		steps.record(nanos);
+		Histogram h = stepsPerSymbol.get(symbol);
+		if (h == null) {
+			h = new Histogram();
+			Histogram existing = stepsPerSymbol.putIfAbsent(symbol, h);
+			if (existing != null)
+				h = existing;
+		}
+		h.record(nanos);
+	}
+
+	/**
+	 * Register the MXBean and start writing the CSV files.
+	 *
+	 * @param outputDir
+	 *            Directory to write the CSV files to
+	 * @param interval
+	 *            Seconds between rows in metrics.csv, 0 to only write at the end
+	 * @param jmx
+	 *            Register the metrics with the platform MBean server
+	 */
+	public synchronized void start(String outputDir, long interval, boolean jmx) {
+		LearnLogger log = LearnLogger.getLogger(Learner.class.getSimpleName());
+		this.outputDir = outputDir;
+
+		if (jmx && objectName == null) {
+			try {
+				MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				objectName = new ObjectName(OBJECT_NAME);
+				if (!server.isRegistered(objectName))
+					server.registerMBean(this, objectName);
+			} catch (Exception e) {
+				log.log(Level.WARNING, "Failed to register metrics with JMX: " + e.getMessage());
+			}
+		}
+
+		if (interval > 0 && scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "LearnerMetrics");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			scheduler.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					write();
+				}
+			}, interval, interval, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Stop writing periodically and write the final values.
+	 */
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdown();
+			scheduler = null;
+		}
+		endRound();
+		write();
+	}
+
+	/**
+	 * Mark the start of a new learning round. The counts of the previous round are
+	 * written to metrics_rounds.csv.
+	 */
+	public synchronized void startRound(long newRound) {
+		endRound();
+		round = newRound;
+	}
+
+	private void endRound() {
+		long now = System.currentTimeMillis();
+		long[] counts = counts();
+		if (outputDir != null) {
+			StringBuilder row = new StringBuilder();
+			row.append(round).append(',').append(now - roundStart);
+			for (int i = 0; i < counts.length; i++) {
+				row.append(',').append(counts[i] - roundCounts[i]);
+			}
+			append("metrics_rounds.csv", "round,duration_ms," + String.join(",", COUNTERS), row.toString());
+		}
+		roundStart = now;
+		roundCounts = counts;
+	}
+
+	private long[] counts() {
+		return new long[] { sulQueries.sum(), dagHits.sum(), sqliteHits.sum(), disabled.sum(), conflicts.sum(),
+				conflictRepairs.sum(), conflictRetries.sum(), flowRetries.sum(), resets.getCount(), filtered.sum(),
+				conflictSamples.sum() };
+	}
+
+	private synchronized void write() {
+		if (outputDir == null)
+			return;
+
+		long now = System.currentTimeMillis();
+		StringBuilder row = new StringBuilder();
+		row.append(now).append(',').append(round);
+		for (long c : counts()) {
+			row.append(',').append(c);
+		}
+		row.append(String.format(",%.3f,%.3f,%d,%.3f,%.3f", resets.getMeanMillis(), resets.getPercentileMillis(99),
+				steps.getCount(), steps.getMeanMillis(), steps.getPercentileMillis(99)));
+		append("metrics.csv", "time,round," + String.join(",", COUNTERS)
+				+ ",reset_mean_ms,reset_p99_ms,steps,step_mean_ms,step_p99_ms", row.toString());
+
+		for (Map.Entry<String, Histogram> e : new TreeMap<>(stepsPerSymbol).entrySet()) {
+			Histogram h = e.getValue();
+			append("metrics_steps.csv", "time,round,symbol,count,mean_ms,p50_ms,p99_ms,max_ms",
+					String.format("%d,%d,\"%s\",%d,%.3f,%.3f,%.3f,%.3f", now, round, e.getKey().replace("\"", "\"\""), h.getCount(),
+							h.getMeanMillis(), h.getPercentileMillis(50), h.getPercentileMillis(99), h.getMaxMillis()));
+		}
+	}
+
+	private void append(String filename, String header, String row) {
+		File file = new File(outputDir, filename);
+		boolean exists = file.exists();
+		PrintWriter out = null;
+		try {
+			out = new PrintWriter(new FileWriter(file, true));
+			if (!exists)
+				out.println(header);
+			out.println(row);
+		} catch (IOException e) {
+			System.err.println("Failed to write " + file + ": " + e.getMessage());
+		} finally {
+			if (out != null)
+				out.close();
+		}
+	}
+
+	@Override
+	public long getRound() {
+		return round;
+	}
+
+	@Override
+	public long getSulQueries() {
+		return sulQueries.sum();
+	}
+
+	@Override
+	public long getDagHits() {
+		return dagHits.sum();
+	}
+
+	@Override
+	public long getSqliteHits() {
+		return sqliteHits.sum();
+	}
+
+	@Override
+	public long getDisabledShortCircuits() {
+		return disabled.sum();
+	}
+
+	@Override
+	public long getConflicts() {
+		return conflicts.sum();
+	}
+
+	@Override
+	public long getConflictRepairs() {
+		return conflictRepairs.sum();
+	}
+
+	@Override
+	public long getConflictRetries() {
+		return conflictRetries.sum();
+	}
+
+	@Override
+	public long getFlowRetries() {
+		return flowRetries.sum();
+	}
+
+	@Override
+	public long getFilteredQueries() {
+		return filtered.sum();
+	}
+
+	@Override
+	public long getConflictSamples() {
+		return conflictSamples.sum();
+	}
+
+	@Override
+	public long getResets() {
+		return resets.getCount();
+	}
+
+	@Override
+	public double getMeanResetMillis() {
+		return resets.getMeanMillis();
+	}
+
+	@Override
+	public double getP99ResetMillis() {
+		return resets.getPercentileMillis(99);
+	}
+
+	@Override
+	public long getSteps() {
+		return steps.getCount();
+	}
+
+	@Override
+	public double getMeanStepMillis() {
+		return steps.getMeanMillis();
+	}
+
+	@Override
+	public double getP99StepMillis() {
+		return steps.getPercentileMillis(99);
+	}
+
+	@Override
+	public Map<String, Double> getMeanStepMillisPerSymbol() {
+		Map<String, Double> means = new TreeMap<>();
+		for (Map.Entry<String, Histogram> e : stepsPerSymbol.entrySet()) {
+			means.put(e.getKey(), e.getValue().getMeanMillis());
+		}
+		return means;
+	}
+}
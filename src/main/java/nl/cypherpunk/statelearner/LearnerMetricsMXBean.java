@@ -0,0 +1,61 @@
+/*
+ *  Copyright (c) 2016 Joeri de Ruiter
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package nl.cypherpunk.statelearner;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link LearnerMetrics}, registered as
+ * <code>nl.cypherpunk.statelearner:type=LearnerMetrics</code>.
+ */
+public interface LearnerMetricsMXBean {
+	long getRound();
+
+	long getSulQueries();
+
+	long getDagHits();
+
+	long getSqliteHits();
+
+	long getDisabledShortCircuits();
+
+	long getConflicts();
+
+	long getConflictRepairs();
+
+	long getConflictRetries();
+
+	long getFlowRetries();
+
+	long getFilteredQueries();
+
+	long getConflictSamples();
+
+	long getResets();
+
+	double getMeanResetMillis();
+
+	double getP99ResetMillis();
+
+	long getSteps();
+
+	double getMeanStepMillis();
+
+	double getP99StepMillis();
+
+	Map<String, Double> getMeanStepMillisPerSymbol();
+}
@@ -19,8 +19,10 @@ package nl.cypherpunk.statelearner;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -31,6 +33,7 @@ import org.apache.commons.lang3.StringUtils;
 
 import de.learnlib.logging.LearnLogger;
 import net.automatalib.words.impl.SimpleAlphabet;
+import nl.cypherpunk.learningpurpose.LearningPurposeAutomaton;
 
 /**
  * Configuration class used for learning parameters
@@ -42,6 +45,10 @@ public class LearningConfig {
 	static int TYPE_SMARTCARD = 1;
 	static int TYPE_SOCKET = 2;
 	static int TYPE_TLS = 3;
+	static int TYPE_SIMULATOR = 4;
+
+	public static final String PARTITION_AUTO = "auto";
+	public static final String PARTITION_NONE = "none";
 
 	protected Properties properties;
 
@@ -49,13 +56,52 @@ public class LearningConfig {
 
 	String output_dir = "output";
 
+	// Write a checkpoint every checkpoint_interval rounds (0 to disable)
+	int checkpoint_interval = 1;
+	// Set by the --resume command line option
+	boolean resume = false;
+
+	// Which hypotheses to convert to PDF: all, final or none
+	String render_pdf = DotRenderer.RENDER_ALL;
+	int render_queue = 4;
+	int render_timeout = 60;
+
 	String learning_algorithm = "lstar";
 	String eqtest = "randomwords";
 
 	// Handles lossy connections
 	boolean use_cache = false;
+	// Repair the cache and refine the learner on conflicts instead of restarting
+	boolean conflict_repair = true;
+	int max_conflict_repairs = 20;
+	// Confidence with which conflicts are decided by sampling, 0 to decide on the
+	// most frequent response
+	double conflict_confidence = 0;
+	int conflict_samples = 20;
+	// Number of SUL instances voting on a conflicting query, 0 to retry it
+	int conflict_vote_instances = 0;
 	ArrayList<ArrayList<String[]>> expected_flows;
+	ExpectedFlows compiled_flows;
+	// Retries of a query that does not match the expected flows, and the initial
+	// wait in ms between them, which doubles after every retry
+	int flow_retries = 10;
+	long flow_retry_backoff = 100;
 	Connection dbConn;
+	// Cache database and the partition in it: auto (fingerprint of the target),
+	// none (unpartitioned tables) or a name
+	String cache_db = "cache.db";
+	String cache_partition = PARTITION_AUTO;
+	// Milliseconds to wait for a lock held by another process on the cache
+	// database
+	int cache_busy_timeout = 10000;
+	// Share the cache database with other learners on this host: none, serve
+	// (own the database and let others connect) or connect
+	String cache_service = CacheService.NONE;
+	int cache_service_port = 7400;
+	// File with the token clients need to connect to the cache service, by
+	// default next to cache_db
+	String cache_service_token;
+	CacheService cacheService;
 	
 	SimpleAlphabet<String> alphabet;
 	
@@ -63,11 +109,48 @@ public class LearningConfig {
 	boolean time_learn = false;
 	ArrayList<String> disable_outputs = new ArrayList<>();
 	ArrayList<String> retrans_enabled = new ArrayList<>();
+	DisabledPrefixes disabled_prefixes;
+	// Learning purpose automaton, instead of the built-in learning purpose
+	String learning_purpose;
+	LearningPurposeAutomaton compiled_purpose;
 	String small_timeout;
 	String big_timeout;
+	// Verify transitions depending on timing with big_timeout after learning with
+	// small_timeout
+	boolean timeout_escalation = false;
+
+	// Format of the query logs, size of the buffer for asynchronous formats and
+	// whether queries are also printed to the console
+	String query_log_format = QueryLog.FORMAT_LOG;
+	int query_log_buffer = 8192;
+	boolean query_log_console = false;
+
+	// Seconds between rows in metrics.csv (0 to only write at the end) and whether
+	// metrics are registered with JMX
+	long metrics_interval = 60;
+	boolean metrics_jmx = true;
+
+	// Shorten counterexamples before refining, with a maximum number of queries
+	boolean minimise_ce = false;
+	int ce_minimise_budget = 50;
+
+	// Look for counterexamples in the caches before running eqtest
+	boolean cache_eqtest = true;
 
 	// Used for W-Method and Wp-method
 	int max_depth = 10;
+	// Number of test words submitted at once by modifiedwmethod
+	int eq_batch_size = 100;
+	// Worker threads and queue size for parallelwmethod and parallelwpmethod
+	int eq_threads = 4;
+	int eq_queue_size = 1000;
+	// Ordering and budgets for prioritised, budgets of 0 mean no limit
+	ArrayList<String> eq_scores = new ArrayList<>(Arrays.asList(PrioritisedEQOracle.SCORE_SPLIT,
+			PrioritisedEQOracle.SCORE_OBSERVATIONS, PrioritisedEQOracle.SCORE_LENGTH));
+	long eq_query_budget = 0;
+	long eq_time_budget = 0;
+	// Outputs after which modifiedwmethod does not extend a test word
+	ArrayList<String> closed_outputs = new ArrayList<>(Arrays.asList(ModifiedWMethodEQOracle.DEFAULT_CLOSED_OUTPUTS));
 
 	// Used for Random words
 	int min_length = 5;
@@ -113,8 +196,22 @@ public class LearningConfig {
 				type = TYPE_SOCKET;
 			else if (properties.getProperty("type").equalsIgnoreCase("tls"))
 				type = TYPE_TLS;
+			else if (properties.getProperty("type").equalsIgnoreCase("simulator"))
+				type = TYPE_SIMULATOR;
 		}
 
+		if (properties.getProperty("checkpoint_interval") != null)
+			checkpoint_interval = Integer.parseInt(properties.getProperty("checkpoint_interval"));
+
+		if (properties.getProperty("render_pdf") != null)
+			render_pdf = properties.getProperty("render_pdf").toLowerCase();
+
+		if (properties.getProperty("render_queue") != null)
+			render_queue = Integer.parseInt(properties.getProperty("render_queue"));
+
+		if (properties.getProperty("render_timeout") != null)
+			render_timeout = Integer.parseInt(properties.getProperty("render_timeout"));
+
 		if (properties.getProperty("learning_algorithm").equalsIgnoreCase("lstar")
 				|| properties.getProperty("learning_algorithm").equalsIgnoreCase("dhc")
 				|| properties.getProperty("learning_algorithm").equalsIgnoreCase("kv")
@@ -126,12 +223,64 @@ public class LearningConfig {
 		if (properties.getProperty("eqtest") != null && (properties.getProperty("eqtest").equalsIgnoreCase("wmethod")
 				|| properties.getProperty("eqtest").equalsIgnoreCase("modifiedwmethod")
 				|| properties.getProperty("eqtest").equalsIgnoreCase("wpmethod")
+				|| properties.getProperty("eqtest").equalsIgnoreCase("parallelwmethod")
+				|| properties.getProperty("eqtest").equalsIgnoreCase("parallelwpmethod")
+				|| properties.getProperty("eqtest").equalsIgnoreCase("prioritised")
 				|| properties.getProperty("eqtest").equalsIgnoreCase("randomwords")))
 			eqtest = properties.getProperty("eqtest").toLowerCase();
 
+		if (properties.getProperty("query_log_format") != null)
+			query_log_format = properties.getProperty("query_log_format").toLowerCase();
+
+		if (properties.getProperty("query_log_buffer") != null)
+			query_log_buffer = Integer.parseInt(properties.getProperty("query_log_buffer"));
+
+		if (properties.getProperty("query_log_console") != null)
+			query_log_console = Boolean.parseBoolean(properties.getProperty("query_log_console"));
+
+		if (properties.getProperty("metrics_interval") != null)
+			metrics_interval = Long.parseLong(properties.getProperty("metrics_interval"));
+
+		if (properties.getProperty("metrics_jmx") != null)
+			metrics_jmx = Boolean.parseBoolean(properties.getProperty("metrics_jmx"));
+
+		if (properties.getProperty("minimise_ce") != null)
+			minimise_ce = Boolean.parseBoolean(properties.getProperty("minimise_ce"));
+
+		if (properties.getProperty("ce_minimise_budget") != null)
+			ce_minimise_budget = Integer.parseInt(properties.getProperty("ce_minimise_budget"));
+
+		if (properties.getProperty("cache_eqtest") != null)
+			cache_eqtest = Boolean.parseBoolean(properties.getProperty("cache_eqtest"));
+
 		if (properties.getProperty("max_depth") != null)
 			max_depth = Integer.parseInt(properties.getProperty("max_depth"));
 
+		if (properties.getProperty("eq_batch_size") != null)
+			eq_batch_size = Integer.parseInt(properties.getProperty("eq_batch_size"));
+
+		if (properties.getProperty("eq_threads") != null)
+			eq_threads = Integer.parseInt(properties.getProperty("eq_threads"));
+
+		if (properties.getProperty("eq_queue_size") != null)
+			eq_queue_size = Integer.parseInt(properties.getProperty("eq_queue_size"));
+
+		if (properties.getProperty("eq_scores") != null) {
+			eq_scores.clear();
+			eq_scores.addAll(Arrays.asList(properties.getProperty("eq_scores").toLowerCase().split(" ")));
+		}
+
+		if (properties.getProperty("eq_query_budget") != null)
+			eq_query_budget = Long.parseLong(properties.getProperty("eq_query_budget"));
+
+		if (properties.getProperty("eq_time_budget") != null)
+			eq_time_budget = Long.parseLong(properties.getProperty("eq_time_budget"));
+
+		if (properties.getProperty("closed_outputs") != null) {
+			closed_outputs.clear();
+			closed_outputs.addAll(Arrays.asList(properties.getProperty("closed_outputs").split(" ")));
+		}
+
 		if (properties.getProperty("min_length") != null)
 			min_length = Integer.parseInt(properties.getProperty("min_length"));
 
@@ -144,14 +293,55 @@ public class LearningConfig {
 		if (properties.getProperty("seed") != null)
 			seed = Integer.parseInt(properties.getProperty("seed"));
 
+		if (properties.getProperty("cache_db") != null)
+			cache_db = properties.getProperty("cache_db");
+
+		if (properties.getProperty("cache_partition") != null)
+			cache_partition = properties.getProperty("cache_partition").trim();
+
+		if (properties.getProperty("cache_busy_timeout") != null)
+			cache_busy_timeout = Integer.parseInt(properties.getProperty("cache_busy_timeout"));
+
+		if (properties.getProperty("cache_service") != null)
+			cache_service = properties.getProperty("cache_service").trim().toLowerCase();
+
+		if (properties.getProperty("cache_service_port") != null)
+			cache_service_port = Integer.parseInt(properties.getProperty("cache_service_port"));
+
+		if (properties.getProperty("cache_service_token") != null)
+			cache_service_token = properties.getProperty("cache_service_token").trim();
+		else
+			cache_service_token = cache_db + ".token";
+
 		if (properties.getProperty("use_cache") != null)
 			use_cache = true;
 		
+		if (properties.getProperty("conflict_repair") != null)
+			conflict_repair = Boolean.parseBoolean(properties.getProperty("conflict_repair"));
+
+		if (properties.getProperty("max_conflict_repairs") != null)
+			max_conflict_repairs = Integer.parseInt(properties.getProperty("max_conflict_repairs"));
+
+		if (properties.getProperty("conflict_confidence") != null)
+			conflict_confidence = Double.parseDouble(properties.getProperty("conflict_confidence"));
+
+		if (properties.getProperty("conflict_samples") != null)
+			conflict_samples = Integer.parseInt(properties.getProperty("conflict_samples"));
+
+		if (properties.getProperty("conflict_vote_instances") != null)
+			conflict_vote_instances = Integer.parseInt(properties.getProperty("conflict_vote_instances"));
+
 		if (properties.getProperty("time_learn") != null)
 			time_learn = true;
 
 		if (properties.getProperty("expected_flows") != null)
 			parseFlows(properties.getProperty("expected_flows"));
+
+		if (properties.getProperty("flow_retries") != null)
+			flow_retries = Integer.parseInt(properties.getProperty("flow_retries"));
+
+		if (properties.getProperty("flow_retry_backoff") != null)
+			flow_retry_backoff = Long.parseLong(properties.getProperty("flow_retry_backoff"));
 		
 		if (properties.getProperty("disable_outputs") != null)
 			disable_outputs.addAll(Arrays.asList(properties.getProperty("disable_outputs").split(" ")));
@@ -159,11 +349,17 @@ public class LearningConfig {
 		if (properties.getProperty("retrans_enabled") != null)
 			retrans_enabled.addAll(Arrays.asList(properties.getProperty("retrans_enabled").split(" ")));
 		
+		if (properties.getProperty("learning_purpose") != null)
+			learning_purpose = properties.getProperty("learning_purpose");
+		
 		if (properties.getProperty("small_timeout") != null)
 			small_timeout = properties.getProperty("small_timeout");
 		
 		if (properties.getProperty("big_timeout") != null)
 			big_timeout = properties.getProperty("big_timeout");
+
+		if (properties.getProperty("timeout_escalation") != null)
+			timeout_escalation = Boolean.parseBoolean(properties.getProperty("timeout_escalation"));
 		
 	}
 
@@ -206,15 +402,87 @@ public class LearningConfig {
 
 	private void setUpdDBConn() throws Exception {
 		LearnLogger log = LearnLogger.getLogger(Learner.class.getSimpleName());
-		Class.forName("org.sqlite.JDBC");
-		this.setDbConn(DriverManager.getConnection("jdbc:sqlite:cache.db"));
-		Statement stmt = null;
-		stmt = getDbConn().createStatement();
-		String sql = "CREATE TABLE IF NOT EXISTS CACHE" + "(ID INTEGER PRIMARY KEY, PREFIX_ID TEXT NOT NULL,"
-				+ "RESPONSE	TEXT	NOT NULL,  COUNT INT DEFAULT 0, IS_OPTIMISED INT DEFAULT 0, CONSTRAINT xyz UNIQUE (PREFIX_ID, RESPONSE))";
-		stmt.executeUpdate(sql);
-		stmt.close();
-		log.log(Level.INFO, "Successfully set up caching database");
+		if (cache_service.equals(CacheService.CONNECT)) {
+			// The learner running the service owns the database and its settings
+			this.setDbConn(CacheService.connect(cache_service_port, Paths.get(cache_service_token)));
+			log.log(Level.INFO, "Connected to cache service on port " + cache_service_port);
+		} else {
+			Class.forName("org.sqlite.JDBC");
+			this.setDbConn(DriverManager.getConnection("jdbc:sqlite:" + cache_db));
+			// Write ahead logging lets other processes read while observations are
+			// written, and writers wait for each other instead of failing
+			Statement stmt = getDbConn().createStatement();
+			try {
+				stmt.execute("PRAGMA journal_mode = WAL");
+				stmt.execute("PRAGMA busy_timeout = " + cache_busy_timeout);
+			} finally {
+				stmt.close();
+			}
+		}
+		if (cache_partition.equals(PARTITION_NONE)) {
+			CachePartition.UNPARTITIONED.create(getDbConn());
+		} else if (!cache_partition.equals(PARTITION_AUTO)) {
+			setCachePartition(new CachePartition(cache_partition, "named " + cache_partition));
+		}
+		// With automatic partitioning the tables are created once the alphabet is known
+		log.log(Level.INFO, "Successfully set up caching database " + cache_db);
+
+		if (cache_service.equals(CacheService.SERVE))
+			startCacheService();
+	}
+
+	/**
+	 * Let other learners on this host use the cache database through this
+	 * learner. The database is opened first if it is not in use yet.
+	 */
+	public CacheService startCacheService() throws Exception {
+		if (cacheService != null)
+			return cacheService;
+		if (getDbConn() == null)
+			setUpdDBConn();
+		if (cacheService == null) {
+			cacheService = new CacheService(getDbConn(), cache_service_port, Paths.get(cache_service_token));
+			cacheService.start();
+		}
+		return cacheService;
+	}
+
+	private void setCachePartition(CachePartition partition) throws SQLException {
+		partition.create(getDbConn());
+		CachePartition.register(getDbConn(), partition);
+		LearnLogger.getLogger(Learner.class.getSimpleName()).log(Level.INFO, "Using cache partition " + partition);
+	}
+
+	/**
+	 * @return Expected flows compiled for checking responses, or null if there are
+	 *         none. The same instance is shared by all oracles, so its retry counts
+	 *         cover the whole run.
+	 */
+	public ExpectedFlows getExpectedFlows() {
+		if (compiled_flows == null && expected_flows != null)
+			compiled_flows = new ExpectedFlows(expected_flows);
+		return compiled_flows;
+	}
+
+	/**
+	 * @return Prefixes disabled by the learning purpose, shared by all oracles and
+	 *         stored in the cache database
+	 */
+	public DisabledPrefixes getDisabledPrefixes() {
+		if (disabled_prefixes == null)
+			disabled_prefixes = new DisabledPrefixes(dbConn);
+		return disabled_prefixes;
+	}
+
+	/**
+	 * @return Learning purpose automaton compiled for the alphabet, or null if none
+	 *         is configured. The compiled transitions are shared by all oracles,
+	 *         each runs its own instance.
+	 */
+	public LearningPurposeAutomaton getLearningPurpose() {
+		if (compiled_purpose == null && learning_purpose != null)
+			compiled_purpose = new LearningPurposeAutomaton(learning_purpose, alphabet, properties);
+		return compiled_purpose;
 	}
 
 	public Connection getDbConn() {
@@ -239,8 +507,56 @@ public class LearningConfig {
 
 	public void setAlphabet(SimpleAlphabet<String> alphabet) {
 		this.alphabet = alphabet;
+		if (dbConn != null && cache_partition.equals(PARTITION_AUTO)) {
+			try {
+				setCachePartition(CachePartition.forConfig(properties, alphabet));
+			} catch (SQLException e) {
+				System.err.println("Cache partition setup failed");
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
 	}
 	
+	/**
+	 * Store the observations made after escalating to the big timeout in their
+	 * own partition, as the partition of the configuration holds those made with
+	 * the small timeout. With automatic partitioning this is the partition of the
+	 * same configuration with big_timeout as small_timeout. A new partition starts
+	 * with the observations of the small timeout that do not depend on timing.
+	 */
+	public void useBigTimeoutPartition() {
+		if (dbConn == null)
+			return;
+
+		CachePartition small = CachePartition.of(dbConn);
+		CachePartition partition;
+		if (cache_partition.equals(PARTITION_AUTO)) {
+			Properties escalated = (Properties) properties.clone();
+			escalated.setProperty("small_timeout", big_timeout);
+			partition = CachePartition.forConfig(escalated, alphabet);
+		} else if (cache_partition.equals(PARTITION_NONE)) {
+			partition = new CachePartition("BIG_TIMEOUT", "unpartitioned with big timeout");
+		} else {
+			partition = new CachePartition(cache_partition + "_BIG_TIMEOUT",
+					"named " + cache_partition + " with big timeout");
+		}
+
+		try {
+			setCachePartition(partition);
+		} catch (SQLException e) {
+			System.err.println("Cache partition setup failed");
+			e.printStackTrace();
+			System.exit(1);
+		}
+		int seeded = Utils.seedCache(small, dbConn);
+		if (seeded > 0)
+			LearnLogger.getLogger(Learner.class.getSimpleName()).log(Level.INFO,
+					"Copied " + seeded + " observations without timing dependent outputs from partition " + small);
+		if (disabled_prefixes != null)
+			disabled_prefixes.usePartition();
+	}
+
 	public String getSmall_timeout() {
 		return small_timeout;
 	}
@@ -19,7 +19,6 @@ package nl.cypherpunk.statelearner;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.Statement;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.logging.Level;
 
@@ -27,7 +26,8 @@ import javax.annotation.ParametersAreNonnullByDefault;
 
 import net.automatalib.words.Word;
 import net.automatalib.words.WordBuilder;
-import nl.cypherpunk.learningpurpose.LearningPurpose;
+import nl.cypherpunk.learningpurpose.LearningPurposeAutomaton;
+import nl.cypherpunk.learningpurpose.LearningPurposeEngine;
 import nl.cypherpunk.learningpurpose.LearningPurposeWiFi;
 import de.learnlib.api.MembershipOracle;
 import de.learnlib.api.MembershipOracle.MealyMembershipOracle;
@@ -46,27 +46,42 @@ public class LogOracle<I, D> implements MealyMembershipOracle<I, D> {
 	}
 
 	LearnLogger logger;
+	QueryLog queryLog;
+	LearnerMetrics metrics = LearnerMetrics.get();
 	SUL<I, D> sul;
 	Connection dbConn;
-	ArrayList<ArrayList<String[]>> expected_flows;
+	ExpectedFlows expected_flows;
+	int flow_retries;
+	long flow_retry_backoff;
 	boolean use_cache = false;
 	boolean time_learn = false;
-	LearningPurposeWiFi lp;
+	LearningPurposeEngine lp;
+	DisabledPrefixes disabled_prefixes;
 	public static String DISABLE_OUTPUT = "-";
+	// Upper limit in ms for the wait between retries
+	static final long MAX_BACKOFF = 30000;
 	boolean need_optimise = false;
 
 	public LogOracle(SUL<I, D> sul, LearnLogger logger, LearningConfig config) {
 		this.sul = sul;
 		this.logger = logger;
+		this.queryLog = QueryLog.forLogger(logger.getName());
 		if (config.use_cache || config.time_learn)
 			this.dbConn = config.getDbConn();
 		if (config.use_cache) {
-			this.expected_flows = config.expected_flows;
+			this.expected_flows = config.getExpectedFlows();
+			this.flow_retries = config.flow_retries;
+			this.flow_retry_backoff = config.flow_retry_backoff;
 			this.use_cache = true;
 		}
 		if (config.time_learn) {
 			this.time_learn = true;
-			this.lp = new LearningPurposeWiFi(config);
+			this.disabled_prefixes = config.getDisabledPrefixes();
+			LearningPurposeAutomaton purpose = config.getLearningPurpose();
+			if (purpose != null)
+				this.lp = purpose.newRun(disabled_prefixes);
+			else
+				this.lp = new LearningPurposeWiFi(config);
 		}
 	}
 
@@ -107,16 +122,24 @@ public class LogOracle<I, D> implements MealyMembershipOracle<I, D> {
 		if (cacheLookup) {
 			Word<D> dbresponse = Utils.cacheLookupQuery(query.toString(), suffix.size(), dbConn);
 			if (dbresponse != null) {
-				logger.logQuery(
-						"DB CACHE [" + prefix.toString() + " | " + suffix.toString() + " /  " + dbresponse + "]");
+				metrics.sqliteHit();
+				if (queryLog != null)
+					queryLog.log(QueryLog.KIND_DB_CACHE, prefix, suffix, null, dbresponse);
+				else
+					logger.logQuery(
+							"DB CACHE [" + prefix.toString() + " | " + suffix.toString() + " /  " + dbresponse + "]");
 				return dbresponse;
 			}
 		}
 
 		if (time_learn && cacheLookup) {
-			Word<String> resp = Utils.responseIfDisabled(query.toString(), dbConn);
+			Word<String> resp = disabled_prefixes.lookup(query.toString());
 			if (resp != null) {
-				logger.logQuery("DISABLED [" + prefix.toString() + " | " + suffix.toString() + " /  " + resp + "]");
+				metrics.disabledShortCircuit();
+				if (queryLog != null)
+					queryLog.log(QueryLog.KIND_DISABLED, prefix, suffix, null, resp);
+				else
+					logger.logQuery("DISABLED [" + prefix.toString() + " | " + suffix.toString() + " /  " + resp + "]");
 				// Utils.cacheStringQueryResponse(query.toString(), resp, dbConn, true);
 				if(suffix.length() == query.length()) {
 					return (Word<D>)resp;
@@ -126,94 +149,130 @@ public class LogOracle<I, D> implements MealyMembershipOracle<I, D> {
 			}
 		}
 
-		if (time_learn)
-			this.lp.reset();
-		this.sul.pre();
+		for (int attempt = 0;; attempt++) {
+			if (time_learn)
+				this.lp.reset();
+			long start = System.nanoTime();
+			this.sul.pre();
+			metrics.reset(System.nanoTime() - start);
+			metrics.sulQuery();
 
-		try {
-			// Prefix: Execute symbols, only log output
-			WordBuilder<D> wbPrefix = new WordBuilder<>(prefix.length());
-			WordBuilder<D> wbPrefixNoTime = new WordBuilder<>(prefix.length());
-			for (I sym : prefix) {
-				D res;
-				if (time_learn) {
-					if (lp.run((String) sym)) {
-						res = this.sul.step(sym);
-						lp.run((String) res);
+			try {
+				// Prefix: Execute symbols, only log output
+				WordBuilder<D> wbPrefix = new WordBuilder<>(prefix.length());
+				WordBuilder<D> wbPrefixNoTime = new WordBuilder<>(prefix.length());
+				for (I sym : prefix) {
+					D res;
+					if (time_learn) {
+						if (lp.run((String) sym)) {
+							res = step(sym);
+							lp.run((String) res);
+						} else {
+							res = (D) DISABLE_OUTPUT;
+						}
 					} else {
-						res = (D) DISABLE_OUTPUT;
+						res = step(sym);
 					}
-				} else {
-					res = this.sul.step(sym);
+					wbPrefix.add(res);
+					wbPrefixNoTime.add((D) Utils.stripTimestamp((String) res));
 				}
-				wbPrefix.add(res);
-				wbPrefixNoTime.add((D) Utils.stripTimestamp((String) res));
-			}
 
-			// Suffix: Execute symbols, outputs constitute output word
-			WordBuilder<D> wbSuffix = new WordBuilder<>(suffix.length());
-			WordBuilder<D> wbSuffixNoTime = new WordBuilder<>(prefix.length());
-			for (I sym : suffix) {
-				D res;
-				if (time_learn) {
-					if (lp.run((String) sym)) {
-						res = this.sul.step(sym);
-						lp.run((String) res);
+				// Suffix: Execute symbols, outputs constitute output word
+				WordBuilder<D> wbSuffix = new WordBuilder<>(suffix.length());
+				WordBuilder<D> wbSuffixNoTime = new WordBuilder<>(prefix.length());
+				for (I sym : suffix) {
+					D res;
+					if (time_learn) {
+						if (lp.run((String) sym)) {
+							res = step(sym);
+							lp.run((String) res);
+						} else {
+							res = (D) DISABLE_OUTPUT;
+						}
 					} else {
-						res = (D) DISABLE_OUTPUT;
+						res = step(sym);
 					}
-				} else {
-					res = this.sul.step(sym);
+					wbSuffix.add(res);
+					wbSuffixNoTime.add((D) Utils.stripTimestamp((String) res));
 				}
-				wbSuffix.add(res);
-				wbSuffixNoTime.add((D) Utils.stripTimestamp((String) res));
-			}
 
-			logger.logQuery("[" + prefix.toString() + " | " + suffix.toString() + " / " + wbPrefix.toWord().toString()
-					+ " | " + wbSuffix.toWord().toString() + "]");
-
-			Word<D> response = wbPrefix.toWord().concat(wbSuffix.toWord());
-			Word<D> responseNoTime = wbPrefixNoTime.toWord().concat(wbSuffixNoTime.toWord());
-
-			// Check expected flows are compatible excluding timestamps
-			for (ArrayList<String[]> flow : expected_flows) {
-				boolean verify = true;
-				// Check whether query prefix matches flow
-				for (int i = 0; i < flow.size(); i++) {
-					String[] qr = flow.get(i);
-					if (!qr[0].equals(query.getSymbol(i).toString())) {
-						verify = false;
-						break;
-					}
+				Word<D> prefixOutput = wbPrefix.toWord();
+				Word<D> suffixOutput = wbSuffix.toWord();
+				if (queryLog != null)
+					queryLog.log(QueryLog.KIND_SUL, prefix, suffix, prefixOutput, suffixOutput);
+				else
+					logger.logQuery("[" + prefix.toString() + " | " + suffix.toString() + " / "
+							+ prefixOutput.toString() + " | " + suffixOutput.toString() + "]");
+
+				Word<D> response = prefixOutput.concat(suffixOutput);
+				Word<D> responseNoTime = wbPrefixNoTime.toWord().concat(wbSuffixNoTime.toWord());
+
+				// Check expected flows are compatible excluding timestamps
+				int flow = (expected_flows == null) ? -1 : expected_flows.check(query, responseNoTime);
+				if (flow == -1) {
+					if (use_cache)
+						Utils.cacheQueryResponse(query, response, dbConn);
+					if (time_learn)
+						disabled_prefixes.addDisabledResponse(query, response);
+
+					need_optimise = true;
+					return suffixOutput;
 				}
-				if (verify) {
-					// If it does match, check outputs are consistent
-					for (int i = 0; i < flow.size(); i++) {
-						String[] qr = flow.get(i);
-						if (!qr[1].equals(responseNoTime.getSymbol(i).toString())) {
-							// retry
-							logger.log(Level.INFO, "Expected Flow Inconsistency, retrying.");
-							return answerQuery(prefix, suffix, cacheLookup);
-						}
-					}
+
+				expected_flows.recordRetry(flow);
+				metrics.flowRetry();
+				if (attempt >= flow_retries) {
+					// Do not store the response in the cache, so the query is asked again
+					// if it is needed later on
+					logger.log(Level.WARNING, "Expected Flow Inconsistency with " + expected_flows.getDescription(flow)
+							+ " after " + attempt + " retries, accepting response without caching it");
+					return suffixOutput;
 				}
+				logger.log(Level.INFO, "Expected Flow Inconsistency with " + expected_flows.getDescription(flow)
+						+ ", retrying.");
+			} finally {
+				sul.post();
 			}
 
-			if (use_cache)
-				Utils.cacheQueryResponse(query, response, dbConn);
+			backoff(attempt);
+		}
+	}
+
+	private D step(I sym) {
+		long start = System.nanoTime();
+		D res = this.sul.step(sym);
+		metrics.step(String.valueOf(sym), System.nanoTime() - start);
+		return res;
+	}
 
-			need_optimise = true;
-			return wbSuffix.toWord();
-		} finally {
-			sul.post();
+	/*
+	 * Wait before retrying a query, doubling the waiting time after every attempt
+	 */
+	private void backoff(int attempt) {
+		if (flow_retry_backoff <= 0)
+			return;
+		long delay = Math.min(flow_retry_backoff << Math.min(attempt, 16), MAX_BACKOFF);
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 	}
 
+	/*
+	 * Remove disabled prefixes contradicting a response found to be correct in a
+	 * conflict
+	 */
+	public void correctDisabledPrefixes(String inconsistentPrefix, String inconsistentResponse) {
+		if (disabled_prefixes != null)
+			disabled_prefixes.invalidate(inconsistentPrefix, inconsistentResponse);
+	}
+
 	/*
 	 * Once query/response accepted by model, carry out optimizations
 	 */
 	public void lpPostProcess() {
-		if(need_optimise) lp.optimise();
+		if(time_learn && need_optimise) lp.optimise();
 	}
 
 }
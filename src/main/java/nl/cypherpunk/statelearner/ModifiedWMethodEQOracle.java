@@ -16,9 +16,10 @@
 
 package nl.cypherpunk.statelearner;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
 
@@ -26,7 +27,6 @@ import net.automatalib.automata.UniversalDeterministicAutomaton;
 import net.automatalib.automata.concepts.Output;
 import net.automatalib.automata.fsa.DFA;
 import net.automatalib.automata.transout.MealyMachine;
-import net.automatalib.commons.util.collections.CollectionsUtil;
 import net.automatalib.util.automata.Automata;
 import net.automatalib.words.Word;
 import net.automatalib.words.WordBuilder;
@@ -46,6 +46,10 @@ public class ModifiedWMethodEQOracle<A extends UniversalDeterministicAutomaton<?
 		public DFAModifiedWMethodEQOracle(int maxDepth, MembershipOracle<I, Boolean> sulOracle) {
 			super(maxDepth, sulOracle);
 		}
+
+		public DFAModifiedWMethodEQOracle(int maxDepth, int batchSize, MembershipOracle<I, Boolean> sulOracle) {
+			super(maxDepth, batchSize, sulOracle);
+		}
 	}
 
 	public static class MealyModifiedWMethodEQOracle<I, O> extends
@@ -53,10 +57,19 @@ public class ModifiedWMethodEQOracle<A extends UniversalDeterministicAutomaton<?
 		public MealyModifiedWMethodEQOracle(int maxDepth, MembershipOracle<I, Word<O>> sulOracle) {
 			super(maxDepth, sulOracle);
 		}
+
+		public MealyModifiedWMethodEQOracle(int maxDepth, int batchSize, MembershipOracle<I, Word<O>> sulOracle) {
+			super(maxDepth, batchSize, sulOracle);
+		}
 	}
 
+	public static final String[] DEFAULT_CLOSED_OUTPUTS = { "ConnectionClosed", "ConnectionClosedEOF",
+			"ConnectionClosedException" };
+
 	private int maxDepth;
+	private final int batchSize;
 	private final MembershipOracle<I, D> sulOracle;
+	private List<String> closedOutputs = Arrays.asList(DEFAULT_CLOSED_OUTPUTS);
 
 	/**
 	 * Constructor.
@@ -67,7 +80,22 @@ public class ModifiedWMethodEQOracle<A extends UniversalDeterministicAutomaton<?
 	 *            interface to the system under learning
 	 */
 	public ModifiedWMethodEQOracle(int maxDepth, MembershipOracle<I, D> sulOracle) {
+		this(maxDepth, 1, sulOracle);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param maxDepth
+	 *            the maximum length of the "middle" part of the test cases
+	 * @param batchSize
+	 *            the number of test cases submitted to the oracle at once
+	 * @param sulOracle
+	 *            interface to the system under learning
+	 */
+	public ModifiedWMethodEQOracle(int maxDepth, int batchSize, MembershipOracle<I, D> sulOracle) {
 		this.maxDepth = maxDepth;
+		this.batchSize = Math.max(1, batchSize);
 		this.sulOracle = sulOracle;
 	}
 
@@ -75,6 +103,14 @@ public class ModifiedWMethodEQOracle<A extends UniversalDeterministicAutomaton<?
 		this.maxDepth = maxDepth;
 	}
 
+	/**
+	 * Set the outputs after which the connection to the SUL is closed. Test words
+	 * starting with a prefix whose output ends with one of these are not asked.
+	 */
+	public void setClosedOutputs(List<String> closedOutputs) {
+		this.closedOutputs = closedOutputs;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -92,86 +128,142 @@ public class ModifiedWMethodEQOracle<A extends UniversalDeterministicAutomaton<?
 		if (charSuffixes.isEmpty())
 			charSuffixes = Collections.singletonList(Word.<I> epsilon());
 
-		WordBuilder<I> wb = new WordBuilder<>();
-
-		DefaultQuery<I, D> query;
-		D hypOutput;
-		String output;
-		Word<I> queryWord;
-		boolean blacklisted;
-		
-		HashSet<Word<I>> blacklist = new HashSet<Word<I>>();
+		List<DefaultQuery<I, D>> batch = new ArrayList<>(batchSize);
+		PrefixBlacklist<I> blacklist = new PrefixBlacklist<I>(inputs);
+		DefaultQuery<I, D> counterExample;
 
 		for (Word<I> trans : transCover) {
-			query = new DefaultQuery<>(trans);
-			sulOracle.processQueries(Collections.singleton(query));
+			if ((counterExample = offer(hypothesis, trans, batch, blacklist)) != null)
+				return counterExample;
+			// Answer the transition before its middles are generated, so they are not
+			// asked if it closes the connection
+			if ((counterExample = flush(hypothesis, batch, blacklist)) != null)
+				return counterExample;
 
-			hypOutput = hypothesis.computeOutput(trans);
-			if (!Objects.equals(hypOutput, query.getOutput()))
-				return query;
+			for (int length = 1; length <= maxDepth; length++) {
+				PrefixBlacklist.Node node = blacklist.walk(trans);
+				// Everything after a blacklisted transition is skipped
+				if (node != null && node.isBlacklisted())
+					break;
 
-			output = query.getOutput().toString();
+				WordBuilder<I> wb = new WordBuilder<>(trans.length() + length);
+				wb.append(trans);
+				counterExample = enumerate(hypothesis, wb, node, length, charSuffixes, batch, blacklist);
+				if (counterExample != null)
+					return counterExample;
+			}
+		}
+
+		return flush(hypothesis, batch, blacklist);
+	}
+
+	/*
+	 * Depth first enumeration of all middle parts of the given length after the
+	 * prefix in the word builder, in the same order as CollectionsUtil.allTuples.
+	 * The blacklist trie is walked along with the word, so subtrees below a
+	 * blacklisted prefix are not generated at all. The node is null once the word
+	 * leaves the trie, as nothing below it has been blacklisted.
+	 */
+	private DefaultQuery<I, D> enumerate(A hypothesis, WordBuilder<I> wb, PrefixBlacklist.Node node, int remaining,
+			List<Word<I>> charSuffixes, List<DefaultQuery<I, D>> batch, PrefixBlacklist<I> blacklist) {
+		List<I> symbols = blacklist.getSymbols();
+		DefaultQuery<I, D> counterExample;
 
-			// Detect closed connection to continue with queries with different prefixes
-			if (output.endsWith("ConnectionClosed") || output.endsWith("ConnectionClosedEOF") || output.endsWith("ConnectionClosedException")) {
-				blacklist.add(trans);				
+		for (int i = 0; i < symbols.size(); i++) {
+			// The blacklist may have grown while answering a batch
+			if (node != null && node.isBlacklisted())
+				return null;
+
+			PrefixBlacklist.Node child = blacklist.child(node, i);
+			if (child != null && child.isBlacklisted())
 				continue;
+
+			wb.append(symbols.get(i));
+			if (remaining > 1) {
+				counterExample = enumerate(hypothesis, wb, child, remaining - 1, charSuffixes, batch, blacklist);
+			} else {
+				counterExample = offerWithSuffixes(hypothesis, wb.toWord(), charSuffixes, batch, blacklist);
 			}
+			wb.truncate(wb.size() - 1);
 
-			//for(int start = 1; start < maxDepth; start++) {
-				for (List<? extends I> middle : CollectionsUtil.allTuples(inputs, 1, maxDepth)) {
-					wb.append(trans).append(middle);
-					queryWord = wb.toWord();
-					wb.clear();
-
-					// Check if trans | middle has a prefix on the blacklist
-					blacklisted = false;
-					for(Word<I> w: blacklist) {
-						if(w.isPrefixOf(queryWord)) {
-							blacklisted = true;
-							break;
-						}
-					}					
-					if(blacklisted) continue;
-
-					query = new DefaultQuery<>(queryWord);
-					sulOracle.processQueries(Collections.singleton(query));
-	
-					hypOutput = hypothesis.computeOutput(queryWord);
-	
-					if (!Objects.equals(hypOutput, query.getOutput()))
-						return query;
-	
-					output = query.getOutput().toString();
-	
-					if (output.endsWith("ConnectionClosed") || output.endsWith("ConnectionClosedEOF") || output.endsWith("ConnectionClosedException")) {
-						// Remember this prefix and ignore queries starting with this after this
-						blacklist.add(queryWord);
-						continue;
-					}
-	
-					for (Word<I> suffix : charSuffixes) {
-						wb.append(trans).append(middle).append(suffix);
-						queryWord = wb.toWord();
-						wb.clear();
-						
-						query = new DefaultQuery<>(queryWord);
-						hypOutput = hypothesis.computeOutput(queryWord);
-						sulOracle.processQueries(Collections.singleton(query));
-						
-						if (!Objects.equals(hypOutput, query.getOutput()))
-							return query;
-						
-						output = query.getOutput().toString();
-						if (output.endsWith("ConnectionClosed") || output.endsWith("ConnectionClosedEOF") || output.endsWith("ConnectionClosedException")) {
-							// Remember this prefix and ignore queries starting with this after this
-							blacklist.add(queryWord);
-						}
-					}
-				}
-			//}
+			if (counterExample != null)
+				return counterExample;
 		}
+		return null;
+	}
+
+	private DefaultQuery<I, D> offerWithSuffixes(A hypothesis, Word<I> queryWord, List<Word<I>> charSuffixes,
+			List<DefaultQuery<I, D>> batch, PrefixBlacklist<I> blacklist) {
+		DefaultQuery<I, D> counterExample;
+		if ((counterExample = offer(hypothesis, queryWord, batch, blacklist)) != null)
+			return counterExample;
+		// If the hypothesis expects the word to close the connection, answer it
+		// before the suffixes are added, so they are skipped if it does
+		if (isConnectionClosed(hypothesis.computeOutput(queryWord))
+				&& (counterExample = flush(hypothesis, batch, blacklist)) != null)
+			return counterExample;
 
+		for (Word<I> suffix : charSuffixes) {
+			if ((counterExample = offer(hypothesis, queryWord.concat(suffix), batch, blacklist)) != null)
+				return counterExample;
+		}
 		return null;
 	}
+
+	/*
+	 * Add a test word to the batch, unless it starts with a blacklisted prefix.
+	 * Once the batch is full it is sent to the SUL.
+	 */
+	private DefaultQuery<I, D> offer(A hypothesis, Word<I> queryWord, List<DefaultQuery<I, D>> batch,
+			PrefixBlacklist<I> blacklist) {
+		if (blacklist.isBlacklisted(queryWord))
+			return null;
+
+		batch.add(new DefaultQuery<I, D>(queryWord));
+		if (batch.size() < batchSize)
+			return null;
+		return flush(hypothesis, batch, blacklist);
+	}
+
+	/*
+	 * Send all queries in the batch to the SUL in one go and check the answers in
+	 * the order in which the queries were generated. Queries that start with a
+	 * prefix that was blacklisted by an earlier query in the same batch are
+	 * ignored, as they would not have been asked one by one.
+	 */
+	private DefaultQuery<I, D> flush(A hypothesis, List<DefaultQuery<I, D>> batch, PrefixBlacklist<I> blacklist) {
+		if (batch.isEmpty())
+			return null;
+
+		try {
+			sulOracle.processQueries(batch);
+
+			for (DefaultQuery<I, D> query : batch) {
+				if (blacklist.isBlacklisted(query.getInput()))
+					continue;
+
+				D hypOutput = hypothesis.computeOutput(query.getInput());
+				if (!Objects.equals(hypOutput, query.getOutput()))
+					return query;
+
+				// Detect closed connection to continue with queries with different prefixes
+				if (isConnectionClosed(query.getOutput())) {
+					// Remember this prefix and ignore queries starting with this after this
+					blacklist.add(query.getInput());
+				}
+			}
+			return null;
+		} finally {
+			batch.clear();
+		}
+	}
+
+	private boolean isConnectionClosed(D output) {
+		String s = output.toString();
+		for (String closed : closedOutputs) {
+			if (s.endsWith(closed))
+				return true;
+		}
+		return false;
+	}
 }
@@ -0,0 +1,344 @@
+/*
+ *  Copyright (c) 2016 Joeri de Ruiter
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package nl.cypherpunk.statelearner;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+
+import de.learnlib.api.EquivalenceOracle.MealyEquivalenceOracle;
+import de.learnlib.api.MembershipOracle;
+import de.learnlib.logging.LearnLogger;
+import de.learnlib.oracles.DefaultQuery;
+import net.automatalib.automata.transout.MealyMachine;
+import net.automatalib.util.automata.Automata;
+import net.automatalib.words.Word;
+import net.automatalib.words.WordBuilder;
+
+/**
+ * W-method and Wp-method equivalence oracle that streams test words to a number
+ * of worker threads, each with its own membership oracle (typically a forked
+ * SUL).
+ *
+ * Test words are generated by walking the hypothesis depth first, continuing
+ * from the state reached by the prefix, so the expected output of every test is
+ * known without running it through the hypothesis from the initial state. The
+ * generator blocks when the bounded queue is full, so the test suite is never
+ * materialised in memory.
+ *
+ * Workers report mismatches back to the calling thread. If a verifier is given,
+ * a mismatch is asked again through it (normally the cached equivalence oracle)
+ * before it is returned as counter-example, so the counter-example is consistent
+ * with the cache. As soon as a counter-example is accepted, generation and the
+ * workers are cancelled.
+ */
+public class ParallelWMethodEQOracle<I, O> implements MealyEquivalenceOracle<I, O> {
+	// Test word with the output expected by the hypothesis, or for mismatches
+	// the output observed by a worker
+	private static final class Test<I, O> {
+		final Word<I> input;
+		final Word<O> output;
+
+		Test(Word<I> input, Word<O> output) {
+			this.input = input;
+			this.output = output;
+		}
+	}
+
+	private final Test<I, O> END = new Test<I, O>(null, null);
+
+	private final List<? extends MembershipOracle<I, Word<O>>> workers;
+	private final MembershipOracle<I, Word<O>> verifier;
+	private final boolean wp;
+	private final int queueSize;
+	private int maxDepth;
+	private final LearnLogger log;
+
+	/**
+	 * @param maxDepth
+	 *            the maximum length of the "middle" part of the test cases
+	 * @param wp
+	 *            use the Wp-method instead of the W-method
+	 * @param queueSize
+	 *            maximum number of generated test words waiting for a worker
+	 * @param workers
+	 *            one membership oracle per worker thread, which must not share a
+	 *            SUL instance
+	 * @param verifier
+	 *            oracle used to confirm counter-examples, or null to accept them
+	 *            directly
+	 */
+	public ParallelWMethodEQOracle(int maxDepth, boolean wp, int queueSize,
+			List<? extends MembershipOracle<I, Word<O>>> workers, MembershipOracle<I, Word<O>> verifier) {
+		this.maxDepth = maxDepth;
+		this.wp = wp;
+		this.queueSize = Math.max(1, queueSize);
+		this.workers = workers;
+		this.verifier = verifier;
+		this.log = LearnLogger.getLogger(Learner.class.getSimpleName());
+	}
+
+	public void setMaxDepth(int maxDepth) {
+		this.maxDepth = maxDepth;
+	}
+
+	@Override
+	public DefaultQuery<I, Word<O>> findCounterExample(MealyMachine<?, I, ?, O> hypothesis,
+			Collection<? extends I> inputs) {
+		return run(hypothesis, new ArrayList<I>(inputs));
+	}
+
+	private <S> DefaultQuery<I, Word<O>> run(final MealyMachine<S, I, ?, O> hypothesis, final List<I> inputs) {
+		final BlockingQueue<Test<I, O>> tests = new ArrayBlockingQueue<>(queueSize);
+		final BlockingQueue<Test<I, O>> mismatches = new LinkedBlockingQueue<>();
+		final AtomicBoolean cancelled = new AtomicBoolean(false);
+		final AtomicReference<RuntimeException> error = new AtomicReference<>();
+		final AtomicInteger running = new AtomicInteger(workers.size());
+		List<Thread> threads = new ArrayList<>();
+
+		threads.add(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (generate(hypothesis, inputs, tests, cancelled)) {
+						for (int i = 0; i < workers.size(); i++) {
+							if (!put(tests, END, cancelled))
+								break;
+						}
+					}
+				} catch (RuntimeException e) {
+					fail(e, error, cancelled, mismatches);
+				}
+			}
+		}, "EQGenerator"));
+
+		for (int i = 0; i < workers.size(); i++) {
+			final MembershipOracle<I, Word<O>> oracle = workers.get(i);
+			threads.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						work(oracle, tests, mismatches, cancelled);
+					} catch (RuntimeException e) {
+						fail(e, error, cancelled, mismatches);
+					} finally {
+						// Last worker to stop signals the end of the test suite
+						if (running.decrementAndGet() == 0)
+							mismatches.add(END);
+					}
+				}
+			}, "EQWorker-" + i));
+		}
+
+		for (Thread thread : threads) {
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		try {
+			while (true) {
+				Test<I, O> mismatch = mismatches.take();
+				if (mismatch == END)
+					break;
+
+				DefaultQuery<I, Word<O>> ce = verify(hypothesis, mismatch);
+				if (ce != null)
+					return ce;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			cancelled.set(true);
+			for (Thread thread : threads) {
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		if (error.get() != null)
+			throw error.get();
+		return null;
+	}
+
+	private DefaultQuery<I, Word<O>> verify(MealyMachine<?, I, ?, O> hypothesis, Test<I, O> mismatch) {
+		if (verifier == null)
+			return new DefaultQuery<I, Word<O>>(Word.<I> epsilon(), mismatch.input, mismatch.output);
+
+		DefaultQuery<I, Word<O>> query = new DefaultQuery<I, Word<O>>(mismatch.input);
+		verifier.processQueries(Collections.singleton(query));
+		if (!Objects.equals(hypothesis.computeOutput(mismatch.input), query.getOutput()))
+			return query;
+
+		log.log(Level.INFO, "Mismatch on " + mismatch.input + " not confirmed by cache, continuing");
+		return null;
+	}
+
+	private void work(MembershipOracle<I, Word<O>> oracle, BlockingQueue<Test<I, O>> tests,
+			BlockingQueue<Test<I, O>> mismatches, AtomicBoolean cancelled) {
+		while (!cancelled.get()) {
+			Test<I, O> test;
+			try {
+				test = tests.poll(100, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (test == null)
+				continue;
+			if (test == END)
+				return;
+
+			DefaultQuery<I, Word<O>> query = new DefaultQuery<I, Word<O>>(test.input);
+			oracle.processQueries(Collections.singleton(query));
+			if (!Objects.equals(test.output, query.getOutput()))
+				mismatches.add(new Test<I, O>(test.input, query.getOutput()));
+		}
+	}
+
+	private void fail(RuntimeException e, AtomicReference<RuntimeException> error, AtomicBoolean cancelled,
+			BlockingQueue<Test<I, O>> mismatches) {
+		error.compareAndSet(null, e);
+		cancelled.set(true);
+		mismatches.add(END);
+	}
+
+	private boolean put(BlockingQueue<Test<I, O>> tests, Test<I, O> test, AtomicBoolean cancelled) {
+		try {
+			while (!cancelled.get()) {
+				if (tests.offer(test, 100, TimeUnit.MILLISECONDS))
+					return true;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+	/*
+	 * Generate the test suite. For the W-method every word of the transition cover
+	 * is extended with all middle parts up to maxDepth and all words of the
+	 * characterizing set. For the Wp-method only the state cover uses the full
+	 * characterizing set, the remaining transitions use the characterizing set of
+	 * the state reached by the test word. Returns false if generation was
+	 * cancelled.
+	 */
+	private <S> boolean generate(MealyMachine<S, I, ?, O> hypothesis, List<I> inputs,
+			BlockingQueue<Test<I, O>> tests, AtomicBoolean cancelled) {
+		List<Word<I>> stateCover = Automata.stateCover(hypothesis, inputs);
+		List<Word<I>> charSuffixes = nonEmpty(Automata.characterizingSet(hypothesis, inputs));
+		Map<S, List<Word<I>>> stateSuffixes = wp ? new HashMap<S, List<Word<I>>>() : null;
+
+		List<Word<I>> prefixes;
+		if (wp) {
+			Set<Word<I>> covered = new HashSet<>(stateCover);
+			prefixes = new ArrayList<>(stateCover);
+			for (Word<I> trans : Automata.transitionCover(hypothesis, inputs)) {
+				if (covered.add(trans))
+					prefixes.add(trans);
+			}
+		} else {
+			prefixes = Automata.transitionCover(hypothesis, inputs);
+		}
+
+		for (int i = 0; i < prefixes.size(); i++) {
+			Word<I> prefix = prefixes.get(i);
+			S state = hypothesis.getInitialState();
+			WordBuilder<O> output = new WordBuilder<>();
+			for (I sym : prefix) {
+				if (state == null)
+					break;
+				output.append(hypothesis.getOutput(state, sym));
+				state = hypothesis.getSuccessor(state, sym);
+			}
+			if (state == null)
+				continue;
+
+			Map<S, List<Word<I>>> suffixes = (wp && i >= stateCover.size()) ? stateSuffixes : null;
+			for (int length = 0; length <= maxDepth; length++) {
+				if (!walk(hypothesis, inputs, state, new WordBuilder<I>(prefix), output, length, charSuffixes,
+						suffixes, tests, cancelled))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	private <S> boolean walk(MealyMachine<S, I, ?, O> hypothesis, List<I> inputs, S state, WordBuilder<I> input,
+			WordBuilder<O> output, int remaining, List<Word<I>> charSuffixes, Map<S, List<Word<I>>> stateSuffixes,
+			BlockingQueue<Test<I, O>> tests, AtomicBoolean cancelled) {
+		if (remaining == 0) {
+			List<Word<I>> suffixes = charSuffixes;
+			if (stateSuffixes != null) {
+				suffixes = stateSuffixes.get(state);
+				if (suffixes == null) {
+					suffixes = nonEmpty(Automata.stateCharacterizingSet(hypothesis, inputs, state));
+					stateSuffixes.put(state, suffixes);
+				}
+			}
+
+			Word<I> inputWord = input.toWord();
+			Word<O> outputWord = output.toWord();
+			for (Word<I> suffix : suffixes) {
+				Test<I, O> test = new Test<I, O>(inputWord.concat(suffix),
+						outputWord.concat(hypothesis.computeStateOutput(state, suffix)));
+				if (!put(tests, test, cancelled))
+					return false;
+			}
+			return true;
+		}
+
+		for (I sym : inputs) {
+			S succ = hypothesis.getSuccessor(state, sym);
+			if (succ == null)
+				continue;
+
+			input.append(sym);
+			output.append(hypothesis.getOutput(state, sym));
+			boolean proceed = walk(hypothesis, inputs, succ, input, output, remaining - 1, charSuffixes,
+					stateSuffixes, tests, cancelled);
+			input.truncate(input.size() - 1);
+			output.truncate(output.size() - 1);
+			if (!proceed)
+				return false;
+		}
+		return true;
+	}
+
+	private List<Word<I>> nonEmpty(List<Word<I>> suffixes) {
+		// Special case: List of characterizing suffixes may be empty,
+		// but in this case we still need to test!
+		if (suffixes.isEmpty())
+			return Collections.singletonList(Word.<I> epsilon());
+		return suffixes;
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ *  Copyright (c) 2016 Joeri de Ruiter
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package nl.cypherpunk.statelearner;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.automatalib.words.Word;
+
+/**
+ * Set of blacklisted prefixes, stored as a trie over the indices of the input
+ * symbols. A word is blacklisted if one of its prefixes (including the word
+ * itself) has been added, which can be checked in time linear in the length of
+ * the word, independent of the number of blacklisted prefixes.
+ *
+ * Nodes are exposed so test generators can walk the trie alongside the words
+ * they enumerate and skip blacklisted subtrees entirely.
+ * Nodes only exist on the paths to blacklisted prefixes, a missing node means
+ * that nothing below it is blacklisted.
+ */
+public class PrefixBlacklist<I> {
+	public static final class Node {
+		private final Node[] children;
+		private boolean blacklisted = false;
+
+		Node(int numSymbols) {
+			children = new Node[numSymbols];
+		}
+
+		/**
+		 * @return True if the path to this node has been blacklisted
+		 */
+		public boolean isBlacklisted() {
+			return blacklisted;
+		}
+	}
+
+	private final List<I> symbols;
+	private final Map<I, Integer> indices;
+	private final Node root;
+
+	public PrefixBlacklist(Collection<? extends I> inputs) {
+		symbols = new ArrayList<I>(inputs);
+		indices = new HashMap<I, Integer>();
+		for (int i = 0; i < symbols.size(); i++) {
+			indices.put(symbols.get(i), i);
+		}
+		root = new Node(symbols.size());
+	}
+
+	public List<I> getSymbols() {
+		return symbols;
+	}
+
+	public Node getRoot() {
+		return root;
+	}
+
+	/**
+	 * @return Child of the node for the symbol with the given index, or null if
+	 *         the node is null or nothing below the child has been blacklisted.
+	 *         Nodes are only created by {@link #add(Word)}, so a null node stands
+	 *         for a prefix that is not blacklisted.
+	 */
+	public Node child(Node node, int symbol) {
+		return (node == null) ? null : node.children[symbol];
+	}
+
+	/**
+	 * @return Node reached by the word, or null if no node exists for it, as
+	 *         nothing starting with the word has been blacklisted or the word
+	 *         contains symbols outside the input alphabet. Stops at the first
+	 *         blacklisted node on the path.
+	 */
+	public Node walk(Word<I> word) {
+		Node node = root;
+		for (I sym : word) {
+			if (node.blacklisted)
+				return node;
+			Integer idx = indices.get(sym);
+			if (idx == null)
+				return null;
+			node = node.children[idx];
+			if (node == null)
+				return null;
+		}
+		return node;
+	}
+
+	public void add(Word<I> word) {
+		Node node = root;
+		for (I sym : word) {
+			if (node.blacklisted)
+				return;
+			Integer idx = indices.get(sym);
+			if (idx == null)
+				return;
+			Node child = node.children[idx];
+			if (child == null) {
+				child = new Node(symbols.size());
+				node.children[idx] = child;
+			}
+			node = child;
+		}
+		node.blacklisted = true;
+	}
+
+	public boolean isBlacklisted(Word<I> word) {
+		Node node = root;
+		for (I sym : word) {
+			if (node.blacklisted)
+				return true;
+			Integer idx = indices.get(sym);
+			if (idx == null || node.children[idx] == null)
+				return false;
+			node = node.children[idx];
+		}
+		return node.blacklisted;
+	}
+}
@@ -0,0 +1,318 @@
+/*
+ *  Copyright (c) 2016 Joeri de Ruiter
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package nl.cypherpunk.statelearner;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.logging.Level;
+
+import de.learnlib.api.EquivalenceOracle.MealyEquivalenceOracle;
+import de.learnlib.api.MembershipOracle;
+import de.learnlib.logging.LearnLogger;
+import de.learnlib.oracles.DefaultQuery;
+import net.automatalib.automata.concepts.StateIDs;
+import net.automatalib.automata.transout.MealyMachine;
+import net.automatalib.util.automata.Automata;
+import net.automatalib.words.Word;
+
+/**
+ * W-method equivalence oracle that runs the most promising test words first and
+ * stops when a query or time budget is spent.
+ *
+ * The test suite is explored best first: every node is a word of the transition
+ * cover extended with a middle part of at most maxDepth symbols, and asking a
+ * node sends the word followed by every characterizing suffix. Nodes are ordered
+ * by a list of scores, compared in the configured order:
+ * <ul>
+ * <li>split: visits more states that were added to the hypothesis in the last
+ * round (states are numbered in order of creation)</li>
+ * <li>observations: the word has been observed fewer times according to the
+ * COUNT column of the database cache</li>
+ * <li>length: the word is shorter</li>
+ * </ul>
+ *
+ * Nodes are only expanded when they are asked. With a query budget the frontier
+ * holds at most as many nodes as can still be asked, so its size follows the
+ * budget rather than the size of the W-method suite.
+ *
+ * Without a budget the complete W-method suite is run, just in a different
+ * order. When the budget runs out no counter-example is returned, so the
+ * hypothesis is accepted. The achieved transition coverage is logged either way.
+ */
+public class PrioritisedEQOracle implements MealyEquivalenceOracle<String, String> {
+	public static final String SCORE_SPLIT = "split";
+	public static final String SCORE_OBSERVATIONS = "observations";
+	public static final String SCORE_LENGTH = "length";
+
+	private static final class Node<S> {
+		final Word<String> word;
+		final S state;
+		final int middle;
+		final int split;
+		final int observations;
+		final long order;
+
+		Node(Word<String> word, S state, int middle, int split, int observations, long order) {
+			this.word = word;
+			this.state = state;
+			this.middle = middle;
+			this.split = split;
+			this.observations = observations;
+			this.order = order;
+		}
+	}
+
+	private final MembershipOracle<String, Word<String>> oracle;
+	private final Connection dbConn;
+	private final List<String> scores;
+	private final long queryBudget;
+	private final long timeBudget;
+	private int maxDepth;
+	private int previousSize = 0;
+	private final LearnLogger log;
+
+	/**
+	 * @param maxDepth
+	 *            the maximum length of the "middle" part of the test cases
+	 * @param scores
+	 *            scores to order test words by, most important first
+	 * @param queryBudget
+	 *            maximum number of queries per call, 0 for no limit
+	 * @param timeBudget
+	 *            maximum time in seconds per call, 0 for no limit
+	 * @param oracle
+	 *            interface to the system under learning
+	 * @param dbConn
+	 *            connection to the database cache, or null if it is not used
+	 */
+	public PrioritisedEQOracle(int maxDepth, List<String> scores, long queryBudget, long timeBudget,
+			MembershipOracle<String, Word<String>> oracle, Connection dbConn) {
+		for (String score : scores) {
+			if (!score.equals(SCORE_SPLIT) && !score.equals(SCORE_OBSERVATIONS) && !score.equals(SCORE_LENGTH))
+				throw new IllegalArgumentException("Unknown equivalence test score " + score);
+		}
+
+		this.maxDepth = maxDepth;
+		this.scores = scores;
+		this.queryBudget = queryBudget;
+		this.timeBudget = timeBudget;
+		this.oracle = oracle;
+		this.dbConn = dbConn;
+		this.log = LearnLogger.getLogger(Learner.class.getSimpleName());
+	}
+
+	public void setMaxDepth(int maxDepth) {
+		this.maxDepth = maxDepth;
+	}
+
+	@Override
+	public DefaultQuery<String, Word<String>> findCounterExample(MealyMachine<?, String, ?, String> hypothesis,
+			Collection<? extends String> inputs) {
+		return run(hypothesis, new ArrayList<String>(inputs));
+	}
+
+	private <S> DefaultQuery<String, Word<String>> run(MealyMachine<S, String, ?, String> hypothesis,
+			List<String> inputs) {
+		long start = System.currentTimeMillis();
+		Map<String, Integer> counts = Collections.emptyMap();
+		if (dbConn != null && scores.contains(SCORE_OBSERVATIONS))
+			counts = Utils.cacheObservationCounts(dbConn);
+
+		List<Word<String>> charSuffixes = Automata.characterizingSet(hypothesis, inputs);
+		// Special case: List of characterizing suffixes may be empty,
+		// but in this case we still need to test!
+		if (charSuffixes.isEmpty())
+			charSuffixes = Collections.singletonList(Word.<String> epsilon());
+
+		// States numbered from here on were added since the previous call
+		int firstNewState = previousSize;
+		previousSize = hypothesis.size();
+
+		StateIDs<S> ids = hypothesis.stateIDs();
+		boolean[] covered = new boolean[hypothesis.size() * inputs.size()];
+		NavigableSet<Node<S>> frontier = new TreeSet<Node<S>>(comparator());
+		long order = 0;
+		long dropped = 0;
+		long queries = 0;
+
+		for (Word<String> trans : Automata.transitionCover(hypothesis, inputs)) {
+			S state = hypothesis.getInitialState();
+			int split = 0;
+			for (String sym : trans) {
+				state = hypothesis.getSuccessor(state, sym);
+				if (state == null)
+					break;
+				if (ids.getStateId(state) >= firstNewState)
+					split++;
+			}
+			if (state != null)
+				dropped += offer(frontier, new Node<S>(trans, state, 0, split, observations(counts, trans), order++),
+						capacity(queries, charSuffixes.size()));
+		}
+
+		int deepest = 0;
+		String exhausted = null;
+
+		while (!frontier.isEmpty()) {
+			if (queryBudget > 0 && queries >= queryBudget) {
+				exhausted = "query";
+				break;
+			}
+			if (timeBudget > 0 && System.currentTimeMillis() - start >= timeBudget * 1000) {
+				exhausted = "time";
+				break;
+			}
+
+			Node<S> node = frontier.pollFirst();
+			deepest = Math.max(deepest, node.middle);
+
+			List<DefaultQuery<String, Word<String>>> batch = new ArrayList<>();
+			for (Word<String> suffix : charSuffixes) {
+				if (queryBudget > 0 && queries + batch.size() >= queryBudget)
+					break;
+				batch.add(new DefaultQuery<String, Word<String>>(node.word.concat(suffix)));
+			}
+
+			oracle.processQueries(batch);
+			queries += batch.size();
+
+			for (DefaultQuery<String, Word<String>> query : batch) {
+				cover(hypothesis, inputs, ids, covered, query.getInput());
+				if (!Objects.equals(hypothesis.computeOutput(query.getInput()), query.getOutput())) {
+					report(queries, start, covered, deepest, frontier.size() + dropped, "counter-example");
+					return query;
+				}
+			}
+
+			if (node.middle >= maxDepth)
+				continue;
+
+			for (String sym : inputs) {
+				S succ = hypothesis.getSuccessor(node.state, sym);
+				if (succ == null)
+					continue;
+				Word<String> word = node.word.append(sym);
+				int split = node.split + (ids.getStateId(succ) >= firstNewState ? 1 : 0);
+				dropped += offer(frontier, new Node<S>(word, succ, node.middle + 1, split, observations(counts, word),
+						order++), capacity(queries, charSuffixes.size()));
+			}
+		}
+
+		// Nodes were only dropped because the budget could not cover them
+		if (exhausted == null && dropped > 0)
+			exhausted = "query";
+
+		if (exhausted != null) {
+			log.log(Level.WARNING, "Equivalence test " + exhausted + " budget exhausted, accepting hypothesis");
+			report(queries, start, covered, deepest, frontier.size() + dropped, exhausted + " budget");
+		} else {
+			report(queries, start, covered, deepest, frontier.size() + dropped, "test suite complete");
+		}
+		return null;
+	}
+
+	/*
+	 * Number of nodes that can still be asked within the query budget, or -1 if
+	 * there is no query budget.
+	 */
+	private long capacity(long queries, int suffixes) {
+		if (queryBudget <= 0)
+			return -1;
+		return (queryBudget - queries + suffixes - 1) / suffixes;
+	}
+
+	/*
+	 * Add a node to the frontier and drop the worst node if the frontier holds
+	 * more nodes than can still be asked. Every ask removes one node ahead of the
+	 * dropped one, and nodes added later only move it further back, so it would
+	 * never have been asked. Its successors are never generated either.
+	 *
+	 * @return Number of nodes dropped
+	 */
+	private static <S> int offer(NavigableSet<Node<S>> frontier, Node<S> node, long capacity) {
+		frontier.add(node);
+		if (capacity >= 0 && frontier.size() > capacity) {
+			frontier.pollLast();
+			return 1;
+		}
+		return 0;
+	}
+
+	private Comparator<Node<?>> comparator() {
+		return new Comparator<Node<?>>() {
+			@Override
+			public int compare(Node<?> a, Node<?> b) {
+				for (String score : scores) {
+					int c;
+					switch (score) {
+					case SCORE_SPLIT:
+						c = Integer.compare(b.split, a.split);
+						break;
+					case SCORE_OBSERVATIONS:
+						c = Integer.compare(a.observations, b.observations);
+						break;
+					default:
+						c = Integer.compare(a.word.length(), b.word.length());
+						break;
+					}
+					if (c != 0)
+						return c;
+				}
+				return Long.compare(a.order, b.order);
+			}
+		};
+	}
+
+	private static int observations(Map<String, Integer> counts, Word<String> word) {
+		Integer count = counts.get(word.toString());
+		return (count == null) ? 0 : count;
+	}
+
+	private static <S> void cover(MealyMachine<S, String, ?, String> hypothesis, List<String> inputs,
+			StateIDs<S> ids, boolean[] covered, Word<String> word) {
+		S state = hypothesis.getInitialState();
+		for (String sym : word) {
+			int input = inputs.indexOf(sym);
+			if (state == null || input == -1)
+				return;
+			covered[ids.getStateId(state) * inputs.size() + input] = true;
+			state = hypothesis.getSuccessor(state, sym);
+		}
+	}
+
+	private void report(long queries, long start, boolean[] covered, int deepest, long remaining, String reason) {
+		int count = 0;
+		for (boolean c : covered) {
+			if (c)
+				count++;
+		}
+		log.log(Level.INFO,
+				String.format(
+						"Equivalence test coverage: %d queries in %d ms, %d/%d transitions (%.1f%%), "
+								+ "middle length up to %d, %d test prefixes left, stopped on %s",
+						queries, System.currentTimeMillis() - start, count, covered.length,
+						covered.length == 0 ? 100.0 : 100.0 * count / covered.length, deepest, remaining, reason));
+	}
+}
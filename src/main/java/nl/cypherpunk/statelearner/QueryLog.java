@@ -0,0 +1,322 @@
+/*
+ *  Copyright (c) 2016 Joeri de Ruiter
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package nl.cypherpunk.statelearner;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.automatalib.words.Word;
+
+/**
+ * Asynchronous log of the queries sent to the SUL.
+ *
+ * Query events are stored in a fixed size ring buffer. Only references to the
+ * (immutable) words are kept, so logging a query does not build any strings. A
+ * background thread drains the buffer to a file, either as JSON lines or in a
+ * binary format. If the buffer is full, the oracle waits for the writer.
+ *
+ * Each event in the binary format is written as: timestamp (long), kind (byte)
+ * and the prefix, suffix, prefix output and suffix output words. A word is
+ * written as its length (int, -1 if absent) followed by its symbols (UTF).
+ *
+ * Logs are registered by the name of the logger they replace, so LogOracle can
+ * find them with {@link #forLogger(String)}.
+ */
+public class QueryLog {
+	public static final String FORMAT_LOG = "log";
+	public static final String FORMAT_JSON = "json";
+	public static final String FORMAT_BINARY = "binary";
+	public static final String FORMAT_NONE = "none";
+
+	// Query answered by the SUL
+	public static final byte KIND_SUL = 0;
+	// Query answered from the database cache
+	public static final byte KIND_DB_CACHE = 1;
+	// Query answered because its prefix is known to be disabled
+	public static final byte KIND_DISABLED = 2;
+
+	private static final String[] KIND_NAMES = { "sul", "db_cache", "disabled" };
+	private static final Map<String, QueryLog> logs = new HashMap<>();
+
+	private final String filename;
+	private final boolean binary;
+	private final int mask;
+	private final long[] times;
+	private final byte[] kinds;
+	private final Word<?>[] prefixes;
+	private final Word<?>[] suffixes;
+	private final Word<?>[] prefixOutputs;
+	private final Word<?>[] suffixOutputs;
+
+	// Number of events added and written so far
+	private long tail = 0;
+	private long head = 0;
+	private boolean closed = false;
+	private final Thread writer;
+
+	/**
+	 * @param filename
+	 *            File to write the events to
+	 * @param format
+	 *            json or binary
+	 * @param capacity
+	 *            Number of events in the ring buffer, rounded up to a power of 2
+	 * @param append
+	 *            Append to an existing file
+	 */
+	public QueryLog(String filename, String format, int capacity, final boolean append) throws IOException {
+		this.filename = filename;
+		this.binary = FORMAT_BINARY.equals(format);
+
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		mask = size - 1;
+		times = new long[size];
+		kinds = new byte[size];
+		prefixes = new Word<?>[size];
+		suffixes = new Word<?>[size];
+		prefixOutputs = new Word<?>[size];
+		suffixOutputs = new Word<?>[size];
+
+		final FileOutputStream output = new FileOutputStream(filename, append);
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain(output);
+			}
+		}, "QueryLog");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Register a log under the name of a logger
+	 */
+	public static synchronized void register(String logger, QueryLog log) {
+		if (logs.isEmpty()) {
+			// Make sure buffered events are written when the learner is stopped
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					closeAll();
+				}
+			}));
+		}
+		logs.put(logger, log);
+	}
+
+	/**
+	 * @return Log registered for the logger, or null if queries are logged
+	 *         through the logger itself
+	 */
+	public static synchronized QueryLog forLogger(String logger) {
+		return logs.get(logger);
+	}
+
+	/**
+	 * Write all buffered events and close the files of all registered logs
+	 */
+	public static void closeAll() {
+		List<QueryLog> all;
+		synchronized (QueryLog.class) {
+			all = new ArrayList<>(logs.values());
+		}
+		for (QueryLog log : all) {
+			log.close();
+		}
+	}
+
+	public void log(byte kind, Word<?> prefix, Word<?> suffix, Word<?> prefixOutput, Word<?> suffixOutput) {
+		long time = System.currentTimeMillis();
+		synchronized (this) {
+			while (tail - head > mask && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			if (closed)
+				return;
+
+			int slot = (int) (tail & mask);
+			times[slot] = time;
+			kinds[slot] = kind;
+			prefixes[slot] = prefix;
+			suffixes[slot] = suffix;
+			prefixOutputs[slot] = prefixOutput;
+			suffixOutputs[slot] = suffixOutput;
+			tail++;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Wait until all buffered events are written and close the file. Events
+	 * logged afterwards are ignored.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void drain(FileOutputStream file) {
+		DataOutputStream data = null;
+		Writer text = null;
+		try {
+			if (binary)
+				data = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+			else
+				text = new BufferedWriter(new OutputStreamWriter(file, StandardCharsets.UTF_8), 1 << 16);
+
+			while (true) {
+				long from, to;
+				synchronized (this) {
+					while (head == tail && !closed) {
+						wait();
+					}
+					if (head == tail)
+						break;
+					from = head;
+					to = tail;
+				}
+
+				// Slots between head and tail are not touched by producers until head
+				// has been moved past them
+				for (long i = from; i < to; i++) {
+					int slot = (int) (i & mask);
+					if (binary)
+						writeBinary(data, slot);
+					else
+						writeJson(text, slot);
+					prefixes[slot] = suffixes[slot] = prefixOutputs[slot] = suffixOutputs[slot] = null;
+				}
+
+				boolean idle;
+				synchronized (this) {
+					head = to;
+					idle = (head == tail);
+					notifyAll();
+				}
+				// Only flush when there is nothing left to write
+				if (idle) {
+					if (binary)
+						data.flush();
+					else
+						text.flush();
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to write query log " + filename + ": " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			try {
+				if (data != null)
+					data.close();
+				else if (text != null)
+					text.close();
+				else
+					file.close();
+			} catch (IOException e) {
+				System.err.println("Failed to close query log " + filename + ": " + e.getMessage());
+			}
+			synchronized (this) {
+				// Release producers waiting for space
+				closed = true;
+				notifyAll();
+			}
+		}
+	}
+
+	private void writeJson(Writer out, int slot) throws IOException {
+		out.write("{\"time\":");
+		out.write(Long.toString(times[slot]));
+		out.write(",\"kind\":\"");
+		out.write(KIND_NAMES[kinds[slot]]);
+		out.write('"');
+		writeJsonWord(out, "prefix", prefixes[slot]);
+		writeJsonWord(out, "suffix", suffixes[slot]);
+		writeJsonWord(out, "prefix_output", prefixOutputs[slot]);
+		writeJsonWord(out, "suffix_output", suffixOutputs[slot]);
+		out.write("}\n");
+	}
+
+	private static void writeJsonWord(Writer out, String name, Word<?> word) throws IOException {
+		if (word == null)
+			return;
+		out.write(",\"");
+		out.write(name);
+		out.write("\":[");
+		for (int i = 0; i < word.length(); i++) {
+			if (i > 0)
+				out.write(',');
+			out.write('"');
+			String sym = String.valueOf(word.getSymbol(i));
+			for (int j = 0; j < sym.length(); j++) {
+				char c = sym.charAt(j);
+				if (c == '"' || c == '\\') {
+					out.write('\\');
+					out.write(c);
+				} else if (c < 0x20) {
+					out.write(String.format("\\u%04x", (int) c));
+				} else {
+					out.write(c);
+				}
+			}
+			out.write('"');
+		}
+		out.write(']');
+	}
+
+	private void writeBinary(DataOutputStream out, int slot) throws IOException {
+		out.writeLong(times[slot]);
+		out.writeByte(kinds[slot]);
+		writeBinaryWord(out, prefixes[slot]);
+		writeBinaryWord(out, suffixes[slot]);
+		writeBinaryWord(out, prefixOutputs[slot]);
+		writeBinaryWord(out, suffixOutputs[slot]);
+	}
+
+	private static void writeBinaryWord(DataOutputStream out, Word<?> word) throws IOException {
+		if (word == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(word.length());
+		for (int i = 0; i < word.length(); i++) {
+			out.writeUTF(String.valueOf(word.getSymbol(i)));
+		}
+	}
+}
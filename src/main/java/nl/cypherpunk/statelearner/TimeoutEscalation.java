@@ -0,0 +1,125 @@
+/*
+ *  Copyright (c) 2016 Joeri de Ruiter
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package nl.cypherpunk.statelearner;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.automatalib.automata.transout.MealyMachine;
+import net.automatalib.words.Word;
+
+/**
+ * Selects the transitions of a hypothesis learned with the small timeout that
+ * depend on timing, so only those have to be asked again with the big timeout.
+ * A transition depends on timing if its output is a timeout, or if it repeats
+ * the output of the transition leading to its state, i.e. a retransmission.
+ *
+ * Every transition is identified by the access sequence of its state, found by
+ * a breadth-first search over the alphabet, followed by its input.
+ */
+public class TimeoutEscalation {
+	static final String TIMEOUT_OUTPUT = "TIMEOUT";
+
+	private final List<String> alphabet;
+
+	public TimeoutEscalation(List<String> alphabet) {
+		this.alphabet = alphabet;
+	}
+
+	/**
+	 * @return Input words ending in a transition that depends on timing, shortest
+	 *         first
+	 */
+	public List<Word<String>> transitions(MealyMachine<?, String, ?, String> hypothesis) {
+		return collect(hypothesis);
+	}
+
+	private <S> List<Word<String>> collect(MealyMachine<S, String, ?, String> hypothesis) {
+		List<Word<String>> transitions = new ArrayList<>();
+		Map<S, Word<String>> access = new HashMap<>();
+		// Output of the transition through which a state was first reached
+		Map<S, String> entryOutput = new HashMap<>();
+		Deque<S> queue = new ArrayDeque<>();
+
+		S initial = hypothesis.getInitialState();
+		access.put(initial, Word.<String> epsilon());
+		queue.add(initial);
+
+		while (!queue.isEmpty()) {
+			S state = queue.poll();
+			for (String input : alphabet) {
+				Word<String> word = access.get(state).append(input);
+				String output = hypothesis.getOutput(state, input);
+				if (dependsOnTiming(output, entryOutput.get(state)))
+					transitions.add(word);
+
+				S successor = hypothesis.getSuccessor(state, input);
+				if (!access.containsKey(successor)) {
+					access.put(successor, word);
+					entryOutput.put(successor, output);
+					queue.add(successor);
+				}
+			}
+		}
+		return transitions;
+	}
+
+	static boolean dependsOnTiming(String output, String previous) {
+		if (output == null)
+			return false;
+		String stripped = Utils.stripTimestamp(output);
+		if (stripped.equals(LogOracle.DISABLE_OUTPUT))
+			return false;
+		if (stripped.contains(TIMEOUT_OUTPUT))
+			return true;
+		return previous != null && stripped.equals(Utils.stripTimestamp(previous));
+	}
+
+	/**
+	 * @param response
+	 *            Space delimited response from the cache database
+	 * @return Whether any output of the response depends on timing, judged
+	 *         against the output before it
+	 */
+	static boolean dependsOnTiming(String response) {
+		String previous = null;
+		for (String output : response.trim().split("\\s+")) {
+			if (dependsOnTiming(output, previous))
+				return true;
+			previous = output;
+		}
+		return false;
+	}
+
+	/**
+	 * @return Whether two outputs for the same input word agree, ignoring
+	 *         timestamps
+	 */
+	public static boolean agrees(Word<String> expected, Word<String> output) {
+		if (expected == null || output == null || expected.length() != output.length())
+			return false;
+		for (int i = 0; i < expected.length(); i++) {
+			if (!Utils.stripTimestamp(expected.getSymbol(i)).equals(Utils.stripTimestamp(output.getSymbol(i))))
+				return false;
+		}
+		return true;
+	}
+}
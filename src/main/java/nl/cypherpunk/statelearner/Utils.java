@@ -17,8 +17,14 @@
 package nl.cypherpunk.statelearner;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.lang3.StringUtils;
 
@@ -27,6 +33,64 @@ import net.automatalib.words.Word;
 public class Utils {
 	private static String CHARS = "0123456789ABCDEF";
 
+	// Attempts of a statement on the cache database that fails because another
+	// process holds a lock, on top of the busy timeout of the connection
+	static final int BUSY_ATTEMPTS = 5;
+
+	/*
+	 * Cache table of the partition used on the connection
+	 */
+	private static String table(Connection dbConn) {
+		return CachePartition.of(dbConn).cacheTable();
+	}
+
+	/**
+	 * @return Whether the statement failed because the database was locked by
+	 *         another connection or process
+	 */
+	static boolean isBusy(SQLException e) {
+		String message = e.getMessage();
+		return e.getErrorCode() == 5 || e.getErrorCode() == 6 || (message != null
+				&& (message.contains("SQLITE_BUSY") || message.contains("database is locked")));
+	}
+
+	/**
+	 * Execute the update, retrying with an increasing delay while the database is
+	 * locked.
+	 */
+	static int executeUpdate(PreparedStatement stmt) throws SQLException {
+		for (int attempt = 1;; attempt++) {
+			try {
+				return stmt.executeUpdate();
+			} catch (SQLException e) {
+				if (attempt >= BUSY_ATTEMPTS || !isBusy(e))
+					throw e;
+				waitForLock(attempt);
+			}
+		}
+	}
+
+	static int executeUpdate(Statement stmt, String sql) throws SQLException {
+		for (int attempt = 1;; attempt++) {
+			try {
+				return stmt.executeUpdate(sql);
+			} catch (SQLException e) {
+				if (attempt >= BUSY_ATTEMPTS || !isBusy(e))
+					throw e;
+				waitForLock(attempt);
+			}
+		}
+	}
+
+	static void waitForLock(int attempt) throws SQLException {
+		try {
+			Thread.sleep(50L << attempt);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for the cache database", e);
+		}
+	}
+
 	public static String bytesToHex(byte[] bytes) {
 		StringBuffer hex = new StringBuffer();
 
@@ -82,7 +146,8 @@ public class Utils {
 		ResultSet rs = null;
 		try {
 			stmt = dbConn.createStatement();
-			String qry1 = "SELECT * FROM CACHE WHERE PREFIX_ID = '" + query + "' ORDER BY COUNT DESC, ID ASC";
+			String qry1 = "SELECT * FROM " + table(dbConn) + " WHERE PREFIX_ID = '" + query
+					+ "' ORDER BY COUNT DESC, ID ASC";
 			// System.out.println(qry1);
 			rs = stmt.executeQuery(qry1);
 			if (rs.next()) {
@@ -122,9 +187,9 @@ public class Utils {
 			inconsistentPrefix = inconsistentPrefix.substring(2);
 		try {
 			stmt = dbConn.createStatement();
-			String qry = "DELETE FROM CACHE WHERE PREFIX_ID LIKE '" + inconsistentPrefix + "%' AND RESPONSE NOT LIKE '"
-					+ inconsistentResponse + "%'";
-			return stmt.executeUpdate(qry);
+			String qry = "DELETE FROM " + table(dbConn) + " WHERE PREFIX_ID LIKE '" + inconsistentPrefix
+					+ "%' AND RESPONSE NOT LIKE '" + inconsistentResponse + "%'";
+			return executeUpdate(stmt, qry);
 		} catch (Exception e) {
 			System.err.println(e.getClass().getName() + ": " + e.getMessage());
 			e.printStackTrace();
@@ -137,6 +202,70 @@ public class Utils {
 		return -1;
 	}
 
+	/**
+	 * Copy the observations of another partition that do not depend on timing
+	 * into the partition used on the connection, if it holds no observations yet.
+	 * Used to start the big timeout partition from what the small timeout
+	 * learned, see {@link TimeoutEscalation}.
+	 * 
+	 * @return Number of copied rows, or -1 on failure
+	 */
+	public static int seedCache(CachePartition from, Connection dbConn) {
+		String target = table(dbConn);
+		if (from.cacheTable().equals(target))
+			return 0;
+
+		Statement stmt = null;
+		PreparedStatement insert = null;
+		ResultSet rs = null;
+		try {
+			stmt = dbConn.createStatement();
+			rs = stmt.executeQuery("SELECT 1 FROM " + target + " LIMIT 1");
+			boolean empty = !rs.next();
+			rs.close();
+			rs = null;
+			if (!empty)
+				return 0;
+
+			List<String[]> rows = new ArrayList<String[]>();
+			rs = stmt.executeQuery("SELECT PREFIX_ID, RESPONSE, COUNT, IS_OPTIMISED FROM " + from.cacheTable());
+			while (rs.next()) {
+				String response = rs.getString("RESPONSE");
+				if (!TimeoutEscalation.dependsOnTiming(response))
+					rows.add(new String[] { rs.getString("PREFIX_ID"), response, rs.getString("COUNT"),
+							rs.getString("IS_OPTIMISED") });
+			}
+
+			insert = dbConn.prepareStatement("INSERT OR IGNORE INTO " + target
+					+ " (PREFIX_ID, RESPONSE, COUNT, IS_OPTIMISED) VALUES (?, ?, ?, ?)");
+			int copied = 0;
+			for (String[] row : rows) {
+				insert.setString(1, row[0]);
+				insert.setString(2, row[1]);
+				insert.setInt(3, Integer.parseInt(row[2]));
+				insert.setInt(4, Integer.parseInt(row[3]));
+				copied += executeUpdate(insert);
+			}
+			return copied;
+		} catch (Exception e) {
+			System.err.println(e.getClass().getName() + ": " + e.getMessage());
+			e.printStackTrace();
+		} finally {
+			try {
+				if (rs != null)
+					rs.close();
+				if (stmt != null)
+					stmt.close();
+				if (insert != null)
+					insert.close();
+			} catch (Exception e) {
+				System.err.println(e.getClass().getName() + ": " + e.getMessage());
+				e.printStackTrace();
+			}
+		}
+		return -1;
+	}
+
 	public static String stripTimestamp(String word) {
 		int i = word.indexOf(",");
 		if (i == -1)
@@ -146,32 +275,39 @@ public class Utils {
 
 	/*
 	 * Cache the query and response (including constituent sub queries and
-	 * responses) and update observation counters.
+	 * responses) and update observation counters. A new response is inserted
+	 * with a count of one, otherwise its count is incremented in place, so
+	 * observations of learners sharing the database are never lost.
 	 */
 	public static void cacheStringQueryResponse(String query, String response, Connection dbConn, boolean isOptimsed) {
 		if(StringUtils.countMatches(query, " ")!= StringUtils.countMatches(response, " "))
 			System.out.println("THIS SHOULD NOT HAPPEN");
-		Statement stmt = null;
+		PreparedStatement insert = null;
+		PreparedStatement update = null;
 		try {
-			stmt = dbConn.createStatement();
-			stmt.executeUpdate("INSERT INTO CACHE (PREFIX_ID, RESPONSE, IS_OPTIMISED) " + "VALUES ('" + query + "', '"
-					+ response + "', " + (isOptimsed ? 1 : 0) + ")");
-			if (!isOptimsed)
-				stmt.executeUpdate("UPDATE CACHE SET COUNT = COUNT + 1 WHERE PREFIX_ID = '" + query.toString()
-						+ "' AND RESPONSE = '" + response + "'");
-			stmt.close();
+			insert = dbConn.prepareStatement("INSERT OR IGNORE INTO " + table(dbConn)
+					+ " (PREFIX_ID, RESPONSE, IS_OPTIMISED, COUNT) VALUES (?, ?, ?, ?)");
+			insert.setString(1, query);
+			insert.setString(2, response);
+			insert.setInt(3, isOptimsed ? 1 : 0);
+			insert.setInt(4, isOptimsed ? 0 : 1);
+			if (executeUpdate(insert) == 0 && !isOptimsed) {
+				update = dbConn.prepareStatement(
+						"UPDATE " + table(dbConn) + " SET COUNT = COUNT + 1 WHERE PREFIX_ID = ? AND RESPONSE = ?");
+				update.setString(1, query);
+				update.setString(2, response);
+				executeUpdate(update);
+			}
 		} catch (Exception e) {
-			if (e.getMessage().contains("UNIQUE")) {
-				try {
-					if (!isOptimsed)
-						stmt.executeUpdate("UPDATE CACHE SET COUNT = COUNT + 1 WHERE PREFIX_ID = '" + query
-								+ "' AND RESPONSE = '" + response + "'");
-					stmt.close();
-				} catch (Exception e2) {
-					System.err.println(e2.getClass().getName() + ": " + e2.getMessage());
-					e.printStackTrace();
-				}
-			} else {
+			System.err.println(e.getClass().getName() + ": " + e.getMessage());
+			e.printStackTrace();
+		} finally {
+			try {
+				if (insert != null)
+					insert.close();
+				if (update != null)
+					update.close();
+			} catch (Exception e) {
 				System.err.println(e.getClass().getName() + ": " + e.getMessage());
 				e.printStackTrace();
 			}
@@ -186,7 +322,7 @@ public class Utils {
 
 		String[] splitQuery = query.split("\\s+");
 		StringBuilder sb = new StringBuilder();
-		String sql = "SELECT PREFIX_ID, RESPONSE FROM CACHE WHERE (";
+		String sql = "SELECT PREFIX_ID, RESPONSE FROM " + table(dbConn) + " WHERE (";
 		for (String s : splitQuery) {
 			sb.append(s);
 			sql = sql + "PREFIX_ID = \"" + sb.toString() + "\" OR ";
@@ -226,4 +362,77 @@ public class Utils {
 		}
 		return null;
 	}
+
+	/**
+	 * Total number of times each query has been observed, summed over all
+	 * responses. Optimised entries are not actual observations and are skipped.
+	 * 
+	 * @param dbConn
+	 * @return Map from space delimited query to its number of observations
+	 */
+	public static Map<String, Integer> cacheObservationCounts(Connection dbConn) {
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		Statement stmt = null;
+		ResultSet rs = null;
+		try {
+			stmt = dbConn.createStatement();
+			rs = stmt.executeQuery(
+					"SELECT PREFIX_ID, SUM(COUNT) AS TOTAL FROM " + table(dbConn) + " WHERE IS_OPTIMISED = 0 GROUP BY PREFIX_ID");
+			while (rs.next()) {
+				counts.put(rs.getString("PREFIX_ID"), rs.getInt("TOTAL"));
+			}
+		} catch (Exception e) {
+			System.err.println(e.getClass().getName() + ": " + e.getMessage());
+			e.printStackTrace();
+		} finally {
+			try {
+				if (rs != null)
+					rs.close();
+				if (stmt != null)
+					stmt.close();
+			} catch (Exception e) {
+				System.err.println(e.getClass().getName() + ": " + e.getMessage());
+				e.printStackTrace();
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * Number of times each response to a query has been observed, most frequent
+	 * first. Optimised entries are not actual observations and are skipped.
+	 * 
+	 * @param query
+	 *            String representation of query, space delimeted words
+	 * @param dbConn
+	 * @return Observation counts in descending order
+	 */
+	public static List<Integer> cacheResponseCounts(String query, Connection dbConn) {
+		List<Integer> counts = new ArrayList<Integer>();
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			stmt = dbConn.prepareStatement(
+					"SELECT COUNT FROM " + table(dbConn) + " WHERE PREFIX_ID = ? AND IS_OPTIMISED = 0 ORDER BY COUNT DESC");
+			stmt.setString(1, query);
+			rs = stmt.executeQuery();
+			while (rs.next()) {
+				counts.add(rs.getInt("COUNT"));
+			}
+		} catch (Exception e) {
+			System.err.println(e.getClass().getName() + ": " + e.getMessage());
+			e.printStackTrace();
+		} finally {
+			try {
+				if (rs != null)
+					rs.close();
+				if (stmt != null)
+					stmt.close();
+			} catch (Exception e) {
+				System.err.println(e.getClass().getName() + ": " + e.getMessage());
+				e.printStackTrace();
+			}
+		}
+		return counts;
+	}
 }
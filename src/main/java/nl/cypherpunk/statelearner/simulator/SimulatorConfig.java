@@ -0,0 +1,105 @@
+/*
+ *  Copyright (c) 2016 Joeri de Ruiter
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package nl.cypherpunk.statelearner.simulator;
+
+import java.io.IOException;
+
+import nl.cypherpunk.statelearner.LearningConfig;
+
+/**
+ * Configuration for the simulated SUL
+ */
+public class SimulatorConfig extends LearningConfig {
+	String alphabet;
+	String model_file;
+
+	// Defaults are set in loadProperties, as field initialisers would run after
+	// the LearningConfig constructor and overwrite the loaded values
+
+	// Used to generate a random model if no model file is given
+	int states;
+	int outputs;
+
+	// Injected faults
+	int latency;
+	int reset_latency;
+	double loss;
+	String loss_output;
+	double nondeterminism;
+	long simulator_seed;
+
+	public SimulatorConfig(String filename) throws IOException {
+		super(filename);
+	}
+
+	public SimulatorConfig(LearningConfig config) {
+		super(config);
+	}
+
+	@Override
+	public void loadProperties() {
+		super.loadProperties();
+
+		if(properties.getProperty("alphabet") != null)
+			alphabet = properties.getProperty("alphabet");
+
+		if(properties.getProperty("model_file") != null)
+			model_file = properties.getProperty("model_file");
+
+		if(properties.getProperty("simulator_states") != null)
+			states = Integer.parseInt(properties.getProperty("simulator_states"));
+		else
+			states = 10;
+
+		if(properties.getProperty("simulator_outputs") != null)
+			outputs = Integer.parseInt(properties.getProperty("simulator_outputs"));
+		else
+			outputs = 4;
+
+		if(properties.getProperty("simulator_latency") != null)
+			latency = Integer.parseInt(properties.getProperty("simulator_latency"));
+		else
+			latency = 0;
+
+		if(properties.getProperty("simulator_reset_latency") != null)
+			reset_latency = Integer.parseInt(properties.getProperty("simulator_reset_latency"));
+		else
+			reset_latency = 0;
+
+		if(properties.getProperty("simulator_loss") != null)
+			loss = Double.parseDouble(properties.getProperty("simulator_loss"));
+		else
+			loss = 0.0;
+
+		if(properties.getProperty("simulator_loss_output") != null)
+			loss_output = properties.getProperty("simulator_loss_output");
+		else
+			loss_output = "TIMEOUT";
+
+		if(properties.getProperty("simulator_nondeterminism") != null)
+			nondeterminism = Double.parseDouble(properties.getProperty("simulator_nondeterminism"));
+		else
+			nondeterminism = 0.0;
+
+		if(properties.getProperty("simulator_seed") != null)
+			simulator_seed = Long.parseLong(properties.getProperty("simulator_seed"));
+		else if(properties.getProperty("seed") != null)
+			simulator_seed = Long.parseLong(properties.getProperty("seed"));
+		else
+			simulator_seed = 1;
+	}
+}
@@ -0,0 +1,269 @@
+/*
+ *  Copyright (c) 2016 Joeri de Ruiter
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package nl.cypherpunk.statelearner.simulator;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compact transition table of a Mealy machine. Transitions are stored in flat
+ * arrays indexed by <code>state * inputs + input</code>, outputs are interned
+ * in a separate table. Undefined transitions have successor -1.
+ *
+ * Models can be loaded from the DOT files written by Learner.writeDotModel or
+ * from the AUT files written by Learner.writeAutModel.
+ */
+public class SimulatorModel {
+	private static final Pattern DOT_EDGE = Pattern.compile("^\\s*\"?([^\\s\"]+)\"?\\s*->\\s*\"?([^\\s\"\\[;]+)\"?\\s*(\\[(.*)\\])?\\s*;?\\s*$");
+	private static final Pattern DOT_LABEL = Pattern.compile("label\\s*=\\s*\"((?:[^\"\\\\]|\\\\.)*)\"");
+	private static final Pattern AUT_HEADER = Pattern.compile("^\\s*des\\s*\\(\\s*(\\S+?)\\s*,.*\\)\\s*$");
+	private static final Pattern AUT_EDGE = Pattern.compile("^\\s*\\(\\s*(\\S+?)\\s*,\\s*['\"](.*)['\"]\\s*,\\s*(\\S+?)\\s*\\)\\s*$");
+	private static final String IO_SEPARATOR = " / ";
+
+	final String[] inputs;
+	final String[] outputs;
+	final int[] successors;
+	final int[] outputIndices;
+	final int initial;
+	final int numStates;
+	private final Map<String, Integer> inputIndices;
+
+	public SimulatorModel(String[] inputs, String[] outputs, int numStates, int initial, int[] successors,
+			int[] outputIndices) {
+		if (successors.length != numStates * inputs.length || outputIndices.length != successors.length)
+			throw new IllegalArgumentException("Transition table does not match number of states and inputs");
+
+		this.inputs = inputs;
+		this.outputs = outputs;
+		this.numStates = numStates;
+		this.initial = initial;
+		this.successors = successors;
+		this.outputIndices = outputIndices;
+
+		inputIndices = new HashMap<>();
+		for (int i = 0; i < inputs.length; i++) {
+			inputIndices.put(inputs[i], i);
+		}
+	}
+
+	/**
+	 * @return Index of the given input symbol, or -1 if it is not part of the
+	 *         model
+	 */
+	public int getInputIndex(String input) {
+		Integer idx = inputIndices.get(input);
+		return (idx == null) ? -1 : idx;
+	}
+
+	public int getSuccessor(int state, int input) {
+		return successors[state * inputs.length + input];
+	}
+
+	public String getOutput(int state, int input) {
+		return outputs[outputIndices[state * inputs.length + input]];
+	}
+
+	public int getInitialState() {
+		return initial;
+	}
+
+	public int size() {
+		return numStates;
+	}
+
+	public List<String> getInputs() {
+		return Arrays.asList(inputs);
+	}
+
+	public String[] getOutputs() {
+		return outputs;
+	}
+
+	/**
+	 * Load a model from file. Files ending in <code>.aut</code> are parsed as AUT,
+	 * everything else as DOT.
+	 */
+	public static SimulatorModel load(String filename) throws IOException {
+		if (filename.toLowerCase().endsWith(".aut"))
+			return loadAut(filename);
+		return loadDot(filename);
+	}
+
+	public static SimulatorModel loadDot(String filename) throws IOException {
+		Builder builder = new Builder();
+		String initial = null;
+
+		BufferedReader reader = new BufferedReader(new FileReader(filename));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				Matcher edge = DOT_EDGE.matcher(line);
+				if (!edge.matches())
+					continue;
+
+				String source = edge.group(1);
+				String target = edge.group(2);
+
+				// Edge from the invisible start node marks the initial state
+				if (source.startsWith("__start")) {
+					initial = target;
+					continue;
+				}
+
+				if (edge.group(4) == null)
+					continue;
+				Matcher label = DOT_LABEL.matcher(edge.group(4));
+				if (!label.find())
+					continue;
+
+				builder.addTransition(source, unescape(label.group(1)), target);
+			}
+		} finally {
+			reader.close();
+		}
+
+		return builder.build(initial, filename);
+	}
+
+	public static SimulatorModel loadAut(String filename) throws IOException {
+		Builder builder = new Builder();
+		String initial = null;
+
+		BufferedReader reader = new BufferedReader(new FileReader(filename));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				Matcher header = AUT_HEADER.matcher(line);
+				if (header.matches()) {
+					initial = header.group(1);
+					continue;
+				}
+
+				Matcher edge = AUT_EDGE.matcher(line);
+				if (edge.matches())
+					builder.addTransition(edge.group(1), edge.group(2), edge.group(3));
+			}
+		} finally {
+			reader.close();
+		}
+
+		return builder.build(initial, filename);
+	}
+
+	/**
+	 * Generate a random complete Mealy machine in which every state is reachable
+	 * from the initial state. Used to benchmark the learner at scale.
+	 */
+	public static SimulatorModel random(int numStates, List<String> inputList, int numOutputs, long seed) {
+		Random random = new Random(seed);
+		String[] inputs = inputList.toArray(new String[inputList.size()]);
+		String[] outputs = new String[numOutputs];
+		for (int i = 0; i < numOutputs; i++) {
+			outputs[i] = "O" + i;
+		}
+
+		int[] successors = new int[numStates * inputs.length];
+		int[] outputIndices = new int[successors.length];
+		for (int i = 0; i < successors.length; i++) {
+			successors[i] = random.nextInt(numStates);
+			outputIndices[i] = random.nextInt(numOutputs);
+		}
+
+		// Chain all states so that every state is reachable. Every state gets an
+		// edge from a transition of an earlier state that is not part of the chain
+		// yet, so later edges never replace earlier ones. The s earlier states have
+		// s * |inputs| transitions of which s - 1 are used, so one is always free.
+		boolean[] chained = new boolean[successors.length];
+		for (int s = 1; s < numStates; s++) {
+			int slot;
+			do {
+				slot = random.nextInt(s * inputs.length);
+			} while (chained[slot]);
+			chained[slot] = true;
+			successors[slot] = s;
+		}
+
+		return new SimulatorModel(inputs, outputs, numStates, 0, successors, outputIndices);
+	}
+
+	private static String unescape(String label) {
+		return label.replace("\\\"", "\"").replace("\\\\", "\\");
+	}
+
+	private static class Builder {
+		private final Map<String, Integer> states = new LinkedHashMap<>();
+		private final Map<String, Integer> inputs = new LinkedHashMap<>();
+		private final Map<String, Integer> outputs = new LinkedHashMap<>();
+		private final List<int[]> transitions = new ArrayList<>();
+
+		void addTransition(String source, String label, String target) throws IOException {
+			int sep = label.indexOf(IO_SEPARATOR);
+			if (sep == -1)
+				throw new IOException("Transition label is not of the form 'input / output': " + label);
+
+			int[] transition = { index(states, source), index(inputs, label.substring(0, sep).trim()),
+					index(outputs, label.substring(sep + IO_SEPARATOR.length()).trim()), index(states, target) };
+			transitions.add(transition);
+		}
+
+		SimulatorModel build(String initial, String filename) throws IOException {
+			if (transitions.isEmpty())
+				throw new IOException("No transitions found in " + filename);
+
+			int numStates = states.size();
+			int numInputs = inputs.size();
+			int[] successors = new int[numStates * numInputs];
+			int[] outputIndices = new int[successors.length];
+			Arrays.fill(successors, -1);
+
+			for (int[] t : transitions) {
+				successors[t[0] * numInputs + t[1]] = t[3];
+				outputIndices[t[0] * numInputs + t[1]] = t[2];
+			}
+
+			int init = 0;
+			if (initial != null) {
+				Integer idx = states.get(initial);
+				if (idx == null)
+					throw new IOException("Unknown initial state " + initial + " in " + filename);
+				init = idx;
+			}
+
+			return new SimulatorModel(inputs.keySet().toArray(new String[numInputs]),
+					outputs.keySet().toArray(new String[outputs.size()]), numStates, init, successors, outputIndices);
+		}
+
+		private static int index(Map<String, Integer> map, String key) {
+			Integer idx = map.get(key);
+			if (idx == null) {
+				idx = map.size();
+				map.put(key, idx);
+			}
+			return idx;
+		}
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ *  Copyright (c) 2016 Joeri de Ruiter
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package nl.cypherpunk.statelearner.simulator;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import de.learnlib.api.SUL;
+import net.automatalib.words.impl.SimpleAlphabet;
+import nl.cypherpunk.statelearner.LogOracle;
+
+/**
+ * SUL that simulates a known Mealy machine. Optionally latency, message loss
+ * and nondeterministic outputs can be injected to mimic a real (lossy) target.
+ *
+ * A lost message leaves the simulated state unchanged and produces the
+ * configured loss output. A nondeterministic step does change the state, but
+ * produces a random output from the model's output table. Inputs without a
+ * transition in the model produce the disable output and do not change the
+ * state.
+ */
+public class SimulatorSUL implements SUL<String, String> {
+	SimpleAlphabet<String> alphabet;
+	SimulatorModel model;
+	int state;
+
+	int latency;
+	int resetLatency;
+	double loss;
+	String lossOutput;
+	double nondeterminism;
+	long seed;
+	Random random;
+
+	// Number of forks created from this SUL, used to derive their seeds
+	int forks = 0;
+
+	public SimulatorSUL(SimulatorConfig config) throws Exception {
+		if (config.model_file != null) {
+			model = SimulatorModel.load(config.model_file);
+		} else {
+			if (config.alphabet == null)
+				throw new Exception("Simulator requires either model_file or alphabet");
+			model = SimulatorModel.random(config.states, Arrays.asList(config.alphabet.split(" ")), config.outputs,
+					config.simulator_seed);
+		}
+
+		if (config.alphabet != null)
+			alphabet = new SimpleAlphabet<String>(Arrays.asList(config.alphabet.split(" ")));
+		else
+			alphabet = new SimpleAlphabet<String>(model.getInputs());
+
+		latency = config.latency;
+		resetLatency = config.reset_latency;
+		loss = config.loss;
+		lossOutput = config.loss_output;
+		nondeterminism = config.nondeterminism;
+		seed = config.simulator_seed;
+		random = new Random(seed);
+		state = model.getInitialState();
+	}
+
+	private SimulatorSUL(SimulatorSUL other, long seed) {
+		alphabet = other.alphabet;
+		model = other.model;
+		latency = other.latency;
+		resetLatency = other.resetLatency;
+		loss = other.loss;
+		lossOutput = other.lossOutput;
+		nondeterminism = other.nondeterminism;
+		this.seed = seed;
+		random = new Random(seed);
+		state = model.getInitialState();
+	}
+
+	public SimpleAlphabet<String> getAlphabet() {
+		return alphabet;
+	}
+
+	public SimulatorModel getModel() {
+		return model;
+	}
+
+	@Override
+	public String step(String symbol) {
+		sleep(latency);
+
+		int input = model.getInputIndex(symbol);
+		if (input == -1 || model.getSuccessor(state, input) == -1)
+			return LogOracle.DISABLE_OUTPUT;
+
+		if (loss > 0 && random.nextDouble() < loss)
+			return lossOutput;
+
+		String output = model.getOutput(state, input);
+		state = model.getSuccessor(state, input);
+
+		if (nondeterminism > 0 && random.nextDouble() < nondeterminism) {
+			String[] outputs = model.getOutputs();
+			output = outputs[random.nextInt(outputs.length)];
+		}
+		return output;
+	}
+
+	@Override
+	public boolean canFork() {
+		return true;
+	}
+
+	@Override
+	public SUL<String, String> fork() {
+		forks++;
+		return new SimulatorSUL(this, seed + forks);
+	}
+
+	@Override
+	public void pre() {
+		sleep(resetLatency);
+		state = model.getInitialState();
+	}
+
+	@Override
+	public void post() {
+		// Nothing to cleanup
+	}
+
+	private static void sleep(int millis) {
+		if (millis <= 0)
+			return;
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -24,6 +24,8 @@ public class SCConfig extends LearningConfig {
 	String apdu_file;
 	String alphabet;
 	String prefix;
+	// Regular expression selecting the readers by name, instead of asking for one
+	String readers;
 	
 	public SCConfig(String filename) throws IOException {
 		super(filename);
@@ -45,5 +47,8 @@ public class SCConfig extends LearningConfig {
 		
 		if(properties.getProperty("prefix") != null)
 			prefix = properties.getProperty("prefix");
+		
+		if(properties.getProperty("readers") != null)
+			readers = properties.getProperty("readers");
 	}
 }
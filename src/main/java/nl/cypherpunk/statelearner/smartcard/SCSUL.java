@@ -16,8 +16,12 @@
 
 package nl.cypherpunk.statelearner.smartcard;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+
+import javax.smartcardio.CardTerminal;
 
 import net.automatalib.words.impl.SimpleAlphabet;
 import de.learnlib.api.SUL;
@@ -25,12 +29,18 @@ import de.learnlib.api.SUL;
 /**
  * SUL that makes use of the smartcard test service
  * 
+ * When readers are selected by name, every fork uses the next free matching
+ * reader, so queries can be spread over several readers with identical cards.
+ * 
  * @author Joeri de Ruiter (joeri@cs.ru.nl)
  */
 public class SCSUL implements SUL<String, String> {
 	SmartcardTestService scTestService;
 	SimpleAlphabet<String> alphabet;
 	String[] prefix = {};
+	// Readers not used by this SUL or one of its forks, null if the reader was
+	// selected by the user
+	Readers readers;
 
 	public SCSUL(HashMap<String, byte[][]> apduDictionary) throws Exception {
 		// Initialise test service
@@ -40,7 +50,16 @@ public class SCSUL implements SUL<String, String> {
 	
 	public SCSUL(SCConfig config) throws Exception {
 		// Initialise test service
-		scTestService = new SmartcardTestService();
+		if(config.readers != null) {
+			readers = new Readers(config.readers, SmartcardTestService.findReaders(config.readers));
+			CardTerminal terminal = readers.claim();
+			if(terminal == null)
+				throw new Exception("No reader with a card matching " + config.readers + " found.");
+			scTestService = new SmartcardTestService(terminal);
+			readers.atr = scTestService.getATR();
+		} else {
+			scTestService = new SmartcardTestService();
+		}
 		scTestService.loadAPDUDictionary(config.apdu_file);
 
 		if(config.alphabet != null)
@@ -68,12 +87,40 @@ public class SCSUL implements SUL<String, String> {
 		return result;
 	}
 
+	private SCSUL(SCSUL parent, SmartcardTestService scTestService) {
+		this.scTestService = scTestService;
+		this.scTestService.setAPDUDictionary(parent.scTestService.getAPDUDictionary());
+		this.alphabet = parent.alphabet;
+		this.prefix = parent.prefix;
+		this.readers = parent.readers;
+	}
+	
 	public boolean canFork() {
-		return false;
+		return readers != null;
 	}
 
+	/**
+	 * Open the next free reader. Readers holding a card with a different ATR than
+	 * the card of the first reader are skipped, as they would answer differently.
+	 */
 	public SUL<String, String> fork() throws UnsupportedOperationException {
-		throw new UnsupportedOperationException("Cannot fork SCSUL");
+		if(readers == null)
+			throw new UnsupportedOperationException("Cannot fork SCSUL without readers");
+		
+		CardTerminal terminal;
+		while((terminal = readers.claim()) != null) {
+			try {
+				SmartcardTestService service = new SmartcardTestService(terminal);
+				if(Arrays.equals(service.getATR(), readers.atr))
+					return new SCSUL(this, service);
+				
+				System.err.println("Skipping reader " + terminal.getName() + ": card differs from the first reader");
+				service.close();
+			} catch (Exception e) {
+				System.err.println("Skipping reader " + terminal.getName() + ": " + e.getMessage());
+			}
+		}
+		throw new UnsupportedOperationException("No free reader matching " + readers.pattern);
 	}
 
 	public void pre() {
@@ -93,4 +140,24 @@ public class SCSUL implements SUL<String, String> {
 	public void post() {
 		// Nothing to cleanup
 	}
-}
\ No newline at end of file
+	
+	/*
+	 * Readers matching the configured pattern that are not in use yet, shared by
+	 * a SUL and its forks.
+	 */
+	static class Readers {
+		final String pattern;
+		final List<CardTerminal> free;
+		// Answer to reset of the card in the first reader
+		byte[] atr;
+		
+		Readers(String pattern, List<CardTerminal> free) {
+			this.pattern = pattern;
+			this.free = new ArrayList<CardTerminal>(free);
+		}
+		
+		synchronized CardTerminal claim() {
+			return free.isEmpty() ? null : free.remove(0);
+		}
+	}
+}
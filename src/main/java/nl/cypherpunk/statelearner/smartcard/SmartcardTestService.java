@@ -20,8 +20,11 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
+import java.util.regex.Pattern;
 
 import javax.smartcardio.Card;
 import javax.smartcardio.CardChannel;
@@ -41,16 +44,33 @@ public class SmartcardTestService {
 	
 	private HashMap<String, byte[][]> apduDictionary;
 		
-	public SmartcardTestService() throws Exception {
+	static {
 		System.setProperty("sun.security.smartcardio.t0GetResponse", "false");
 		System.setProperty("sun.security.smartcardio.t1GetResponse", "false");
+	}
+		
+	public SmartcardTestService() throws Exception {
+		this(selectReader());
 		
 		//System.out.println("JRE version: " + System.getProperty("java.version"));
 		//System.out.println("JRE vendor: " + System.getProperty("java.vendor"));
 		
 		//System.out.println("JRE spec version: " + System.getProperty("java.specification.version"));
 		//System.out.println("JRE spec vendor: " + System.getProperty("java.specification.vendor"));
+	}
+	
+	public SmartcardTestService(CardTerminal terminal) throws Exception {
+		this.terminal = terminal;
+		System.err.println("Selected reader: " + terminal.toString());
+		
+		// Connect to card in selected reader
+		card = terminal.connect("*");
+		channel = card.getBasicChannel();
 		
+		System.err.println("Connected to card");
+	}
+	
+	private static CardTerminal selectReader() throws Exception {
 		// Get list of card readers
 		List<CardTerminal> terminals = TerminalFactory.getDefault().terminals().list();
 		
@@ -59,19 +79,51 @@ public class SmartcardTestService {
 		}
 		
 		// Ask user to select a card reader to connect to
-		terminal = (CardTerminal)JOptionPane.showInputDialog(null, "Reader", "Select a reader", JOptionPane.QUESTION_MESSAGE, null, terminals.toArray(), terminals.get(0));
+		CardTerminal terminal = (CardTerminal)JOptionPane.showInputDialog(null, "Reader", "Select a reader", JOptionPane.QUESTION_MESSAGE, null, terminals.toArray(), terminals.get(0));
 		
 		if(terminal == null) {
 			throw new Exception("No reader selected.");
 		}
-
-		System.err.println("Selected reader: " + terminal.toString());
 		
-		// Connect to card in selected reader
-		card = terminal.connect("*");
-		channel = card.getBasicChannel();
+		return terminal;
+	}
+	
+	/**
+	 * Find the readers with a card present whose name matches the pattern, for
+	 * selecting readers without user interaction.
+	 * 
+	 * @param pattern Regular expression found in the names of the readers
+	 * @return Matching readers, sorted by name
+	 */
+	public static List<CardTerminal> findReaders(String pattern) throws Exception {
+		Pattern p = Pattern.compile(pattern);
+		List<CardTerminal> readers = new ArrayList<CardTerminal>();
 		
-		System.err.println("Connected to card");
+		for(CardTerminal terminal: TerminalFactory.getDefault().terminals().list()) {
+			if(p.matcher(terminal.getName()).find() && terminal.isCardPresent()) {
+				readers.add(terminal);
+			}
+		}
+		
+		Collections.sort(readers, new Comparator<CardTerminal>() {
+			@Override
+			public int compare(CardTerminal a, CardTerminal b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		return readers;
+	}
+	
+	public CardTerminal getTerminal() {
+		return terminal;
+	}
+	
+	public byte[] getATR() {
+		return card.getATR().getBytes();
+	}
+	
+	public void close() throws CardException {
+		card.disconnect(false);
 	}
 	
 	public SmartcardTestService(HashMap<String, byte[][]> apduDictionary) throws Exception {
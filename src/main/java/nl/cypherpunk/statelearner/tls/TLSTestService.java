@@ -373,6 +373,13 @@ public class TLSTestService {
 	public void closeSocket() throws IOException {
 		socket.close();
 	}
+
+	// Use the given streams instead of a socket, for example to replay recorded messages.
+	// The input should throw a SocketTimeoutException when no more data is available.
+	public void setStreams(InputStream input, OutputStream output) {
+		this.input = input;
+		this.output = output;
+	}
 	
 	public void retrieveInitValues() throws Exception {
 		sendClientHelloAll();